@@ -0,0 +1,146 @@
+package nctu.winlab.ha5gup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.onlab.packet.Ip4Address;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Decouples overload alerts from the webhook which receives them. Alerts of the same UPF instance received
+// within the coalescing window are merged into one, which is handed to the handler on a single thread, so a
+// burst of alerts (e.g. repeats of an alert group) leads to one rebalance pass per UPF instance.
+// An alert is dropped if it is resolved, or not repeated for staleMillis, before it is handled.
+public class AlertQueue {
+    public interface AlertHandler {
+        void handle(String name, Ip4Address dip, double threshold);
+    }
+
+    protected static final Logger log = getLogger(AlertQueue.class);
+
+    private AlertHandler handler;
+    private volatile long coalesceWindowMillis;
+    private volatile long staleMillis;
+    private int capacity;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // In the order of arrival, which is also the order they are due.
+    private final LinkedHashMap<Ip4Address, PendingAlert> pendingAlerts = new LinkedHashMap<Ip4Address, PendingAlert>();
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+
+    public AlertQueue(AlertHandler handler, long coalesceWindowMillis, long staleMillis, int capacity) {
+        this.handler = handler;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        this.staleMillis = staleMillis;
+        this.capacity = capacity;
+    }
+
+    public void setCoalesceWindow(long coalesceWindowMillis) {
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    public void setStaleAfter(long staleMillis) {
+        this.staleMillis = staleMillis;
+    }
+
+    // Returns false if the alert is dropped because the queue is full.
+    public synchronized boolean offer(String name, Ip4Address dip, double threshold) {
+        received.increment();
+        long now = System.currentTimeMillis();
+        PendingAlert pending = pendingAlerts.get(dip);
+        if (pending != null) {
+            coalesced.increment();
+            pending.name = name;
+            pending.threshold = threshold;
+            pending.lastSeenMillis = now;
+            return true;
+        }
+        if (pendingAlerts.size() >= capacity) {
+            dropped.increment();
+            log.info("offer: alert of {} ({}) is dropped, {} alerts pending", name, dip, pendingAlerts.size());
+            return false;
+        }
+        pendingAlerts.put(dip, new PendingAlert(name, threshold, now));
+        scheduler.schedule(this::drain, coalesceWindowMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // Called when the alert of the UPF instance is resolved, so a pending one is no longer needed.
+    public synchronized void resolve(Ip4Address dip) {
+        if (pendingAlerts.remove(dip) != null) {
+            resolved.increment();
+        }
+    }
+
+    public synchronized int size() {
+        return pendingAlerts.size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        log.info("AlertQueue: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d received, %d coalesced, %d dropped, %d stale, %d resolved, %d handled, %d pending",
+                received.sum(), coalesced.sum(), dropped.sum(), stale.sum(), resolved.sum(), handled.sum(), size());
+    }
+
+    // Handles the alerts which are due, one at a time.
+    private void drain() {
+        while (true) {
+            Ip4Address dip = null;
+            PendingAlert alert = null;
+            synchronized (this) {
+                Iterator<Map.Entry<Ip4Address, PendingAlert>> it = pendingAlerts.entrySet().iterator();
+                if (!it.hasNext()) {
+                    return;
+                }
+                Map.Entry<Ip4Address, PendingAlert> entry = it.next();
+                if (System.currentTimeMillis() - entry.getValue().firstSeenMillis < coalesceWindowMillis) {
+                    return;
+                }
+                it.remove();
+                dip = entry.getKey();
+                alert = entry.getValue();
+            }
+            if (System.currentTimeMillis() - alert.lastSeenMillis > staleMillis) {
+                stale.increment();
+                log.info("drain: alert of {} ({}) is stale", alert.name, dip);
+                continue;
+            }
+            handled.increment();
+            try {
+                handler.handle(alert.name, dip, alert.threshold);
+            } catch (Exception e) {
+                log.info(e.toString());
+            }
+        }
+    }
+
+    private class PendingAlert {
+        public PendingAlert(String name, double threshold, long seenMillis) {
+            this.name = name;
+            this.threshold = threshold;
+            this.firstSeenMillis = seenMillis;
+            this.lastSeenMillis = seenMillis;
+        }
+        public String name;
+        public double threshold;
+        public long firstSeenMillis;
+        public long lastSeenMillis;
+    }
+}
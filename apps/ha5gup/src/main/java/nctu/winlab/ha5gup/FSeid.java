@@ -1,25 +1,56 @@
 package nctu.winlab.ha5gup;
 
-import java.util.Objects;
 import org.onlab.packet.Ip4Address;
 
-public class FSeid {
+// Immutable, so it is safely shared between threads without locking. The hash is computed once, since FSeid is
+// the key of the session indexes and of the striped session locks. The 64-bit SEID and the IPv4 don't fit in
+// one long, so primitive-keyed indexes use getSeid() and getIpv4Int() together, see PfcpSessionStore.
+// The Ip4Address is only built when it is asked for, and published through a volatile field, so a thread never
+// sees one which isn't fully built. Threads racing to build it may each build their own, which is a benign race,
+// since they are equal and the value of the F-SEID doesn't change.
+public final class FSeid {
     public FSeid(long seid, Ip4Address ipv4) {
+        this(seid, ipv4, ipv4.toInt());
+    }
+
+    public FSeid(long seid, int ipv4) {
+        this(seid, null, ipv4);
+    }
+
+    private FSeid(long seid, Ip4Address ipv4, int ipv4Int) {
         this.seid = seid;
         this.ipv4 = ipv4;
+        this.ipv4Int = ipv4Int;
+        this.hash = hash(seid, ipv4Int);
     }
 
-    public synchronized long getSeid() {
+    public long getSeid() {
         return seid;
     }
 
-    public synchronized Ip4Address getIpv4() {
+    public Ip4Address getIpv4() {
+        Ip4Address ipv4 = this.ipv4;
+        if (ipv4 == null) {
+            ipv4 = Ip4Address.valueOf(ipv4Int);
+            this.ipv4 = ipv4;
+        }
         return ipv4;
     }
 
+    public int getIpv4Int() {
+        return ipv4Int;
+    }
+
+    // The hash of the F-SEID made of seid and ipv4, so it can be computed without an FSeid.
+    public static int hash(long seid, int ipv4) {
+        long h = seid * 0x9e3779b97f4a7c15L + ipv4;
+        h = (h ^ (h >>> 32)) * 0xd6e8feb86659fd93L;
+        return (int) (h ^ (h >>> 32));
+    }
+
     @Override
     public String toString() {
-        return String.format("(%s, %d)", ipv4, seid);
+        return String.format("(%s, %d)", getIpv4(), seid);
     }
 
     @Override
@@ -31,14 +62,16 @@ public class FSeid {
             return false;
         }
         FSeid that = (FSeid) obj;
-        return seid == that.seid && ipv4.equals(that.ipv4);
+        return seid == that.seid && ipv4Int == that.ipv4Int;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(seid, ipv4);
+        return hash;
     }
 
-    private long seid;
-    private Ip4Address ipv4;
+    private final long seid;
+    private volatile Ip4Address ipv4;
+    private final int ipv4Int;
+    private final int hash;
 }
@@ -1,20 +1,51 @@
 package nctu.winlab.ha5gup;
 
-import java.util.Objects;
 import org.onlab.packet.Ip4Address;
 
-public class FTeid {
+// Immutable, so it is safely shared between threads without locking. An F-TEID is packed into a long
+// (TEID << 32 | IPv4), which primitive-keyed indexes store instead of FTeid objects, see key() and of().
+// Only the packed key is kept. The Ip4Address is built on demand, since it is only needed for flow rules.
+public final class FTeid {
     public FTeid(int teid, Ip4Address ipv4) {
-        this.teid = teid;
-        this.ipv4 = ipv4;
+        this(pack(teid, ipv4.toInt()));
     }
 
-    public synchronized int getTeid() {
-        return teid;
+    public FTeid(int teid, int ipv4) {
+        this(pack(teid, ipv4));
     }
 
-    public synchronized Ip4Address getIpv4() {
-        return ipv4;
+    private FTeid(long key) {
+        this.key = key;
+        this.hash = Long.hashCode(key * 0x9e3779b97f4a7c15L);
+    }
+
+    public static FTeid of(long key) {
+        return new FTeid(key);
+    }
+
+    public static long pack(int teid, int ipv4) {
+        return ((long) teid << 32) | (ipv4 & 0xffffffffL);
+    }
+
+    public int getTeid() {
+        return (int) (key >>> 32);
+    }
+
+    public Ip4Address getIpv4() {
+        return Ip4Address.valueOf(getIpv4Int());
+    }
+
+    public int getIpv4Int() {
+        return (int) key;
+    }
+
+    public long key() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%s, %d)", getIpv4(), getTeid());
     }
 
     @Override
@@ -25,15 +56,14 @@ public class FTeid {
         if (!(obj instanceof FTeid)) {
             return false;
         }
-        FTeid that = (FTeid) obj;
-        return teid == that.teid && ipv4.equals(that.ipv4);
+        return key == ((FTeid) obj).key;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(teid, ipv4);
+        return hash;
     }
 
-    private int teid;
-    private Ip4Address ipv4;
+    private final long key;
+    private final int hash;
 }
@@ -1,10 +1,12 @@
 package nctu.winlab.ha5gup;
 
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import org.onlab.packet.Ip4Address;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.flow.FlowEntry;
 import org.onosproject.net.flow.FlowId;
@@ -19,6 +21,9 @@ import static org.slf4j.LoggerFactory.getLogger;
 import static org.onosproject.net.flow.FlowRuleEvent.Type.RULE_ADD_REQUESTED;
 import static org.onosproject.net.flow.FlowRuleEvent.Type.RULE_REMOVE_REQUESTED;
 
+// Collects the throughput of DNAT and routing rules from the switch counters. The throughput of each rule is
+// smoothed by EWMA, and rules tracked for a PFCP session are also summed per session and per UPF instance as
+// the counters arrive, so these totals can be read without walking the rules.
 public class FlowRuleThroughputCollector {
     protected static final Logger log = getLogger(FlowRuleThroughputCollector.class);
 
@@ -27,20 +32,74 @@ public class FlowRuleThroughputCollector {
 
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
     private final ConcurrentHashMap<FlowId, FlowStat> flowStats = new ConcurrentHashMap<FlowId, FlowStat>();
+    private final ConcurrentHashMap<FlowId, FlowOwner> flowOwners = new ConcurrentHashMap<FlowId, FlowOwner>();
+    private final ConcurrentHashMap<FSeid, Aggregate> sessionThroughput = new ConcurrentHashMap<FSeid, Aggregate>();
+    private final ConcurrentHashMap<Ip4Address, Aggregate> upfThroughput = new ConcurrentHashMap<Ip4Address, Aggregate>();
+    private volatile long ewmaWindowMillis;
     private final UpflbFlowRuleListener upflbFlowRuleListener = new UpflbFlowRuleListener();
     private final PiTableId upfDnatTableId = PiTableId.of("Ingress.upf_dnat_table");
     private final PiTableId ipRouteTableId = PiTableId.of("Ingress.ip_route_table");
 
-    public FlowRuleThroughputCollector(ApplicationId appId, FlowRuleService flowRuleService) {
+    public FlowRuleThroughputCollector(ApplicationId appId, FlowRuleService flowRuleService, long collectIntervalMillis, long ewmaWindowMillis) {
         this.appId = appId;
         this.flowRuleService = flowRuleService;
+        this.ewmaWindowMillis = ewmaWindowMillis;
 
         flowRuleService.addListener(upflbFlowRuleListener);
-        scheduler.scheduleAtFixedRate(() -> { collect(); }, 0, 3, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(() -> { collect(); }, 0, collectIntervalMillis, TimeUnit.MILLISECONDS);
     }
 
+    // Throughput (bytes per second) of the flow rule, or 0 if its counters have not been collected.
     public double getThroughput(FlowId flowId) {
-        return flowStats.get(flowId).throughput;
+        FlowStat stat = flowStats.get(flowId);
+        return stat == null ? 0 : stat.throughput;
+    }
+
+    // Throughput (bytes per second) summed over the rules tracked for the PFCP session.
+    public double getSessionThroughput(FSeid fseid) {
+        Aggregate aggregate = sessionThroughput.get(fseid);
+        return aggregate == null ? 0 : aggregate.throughput;
+    }
+
+    // Throughput (bytes per second) summed over the rules tracked for the sessions served by the UPF instance.
+    public double getUpfThroughput(Ip4Address upfDip) {
+        Aggregate aggregate = upfThroughput.get(upfDip);
+        return aggregate == null ? 0 : aggregate.throughput;
+    }
+
+    // A window of 0 disables smoothing, i.e. only the latest sample is used.
+    public void setEwmaWindow(long ewmaWindowMillis) {
+        this.ewmaWindowMillis = ewmaWindowMillis;
+    }
+
+    // Accounts the DNAT and N6 downlink routing rules of the session to the session and to the UPF instance
+    // currently serving it. Tracking again after a migration moves the throughput to the new UPF instance.
+    public synchronized void trackSession(PfcpSession session) {
+        FSeid fseid = session.fseid();
+        Ip4Address upfDip = session.upfDip();
+        for (int i = 0; i < session.endpointCount(); i++) {
+            // Uplink traffic covered by a TEID block rule can't be told apart per session, the block rule is
+            // tracked for the UPF instance only, see TeidBlockAllocator.
+            if (session.hasDnatRule(i)) {
+                track(session.dnatFlowId(i), fseid, upfDip);
+            }
+        }
+        FlowId n6DlRoutingFlowId = session.n6DlRoutingFlowId();
+        if (n6DlRoutingFlowId != null) {
+            track(n6DlRoutingFlowId, fseid, upfDip);
+        }
+    }
+
+    public synchronized void untrackSession(PfcpSession session) {
+        for (int i = 0; i < session.endpointCount(); i++) {
+            if (session.hasDnatRule(i)) {
+                untrack(session.dnatFlowId(i));
+            }
+        }
+        FlowId n6DlRoutingFlowId = session.n6DlRoutingFlowId();
+        if (n6DlRoutingFlowId != null) {
+            untrack(n6DlRoutingFlowId);
+        }
     }
 
     public void shutdownCollector() {
@@ -57,16 +116,7 @@ public class FlowRuleThroughputCollector {
                 if (!entry.table().equals(upfDnatTableId) && !entry.table().equals(ipRouteTableId)) {
                     continue;
                 }
-                FlowId flowId = entry.id();
-                long life = entry.life();
-                long bytes = entry.bytes();
-                if (life != flowStats.get(flowId).life) {
-                    double throughput = (double)(bytes - flowStats.get(flowId).bytes) / (life - flowStats.get(flowId).life);
-                    flowStats.get(flowId).life = life;
-                    flowStats.get(flowId).bytes = bytes;
-                    flowStats.get(flowId).throughput = throughput;
-                    // log.info("{}: life = {}, bytes = {}, throughput = {} Mbps", flowId.toString(), life, bytes, throughput);
-                }
+                update(entry);
             }
         } catch (Exception e) {
             // Mainly for catching ArithmeticException.
@@ -74,6 +124,126 @@ public class FlowRuleThroughputCollector {
         }
     }
 
+    // Accounts a rule shared by sessions, e.g. the rule of a TEID or UE IP block, to the UPF instance only.
+    // Tracking again moves the throughput to another UPF instance.
+    public synchronized void trackUpfRule(FlowId flowId, Ip4Address upfDip) {
+        track(flowId, null, upfDip);
+    }
+
+    public synchronized void untrackUpfRule(FlowId flowId) {
+        untrack(flowId);
+    }
+
+    private synchronized void update(FlowEntry entry) {
+        FlowId flowId = entry.id();
+        FlowStat stat = flowStats.get(flowId);
+        if (stat == null) {
+            return;
+        }
+        long life = entry.life();
+        long bytes = entry.bytes();
+        if (life < stat.life || bytes < stat.bytes) {
+            // The entry has been reinstalled, so its counters restarted.
+            stat.life = life;
+            stat.bytes = bytes;
+            return;
+        }
+        if (life != stat.life) {
+            double sample = (double)(bytes - stat.bytes) / (life - stat.life);
+            double alpha = ewmaWindowMillis <= 0 ? 1 : 1 - Math.exp(-(double)(life - stat.life) * 1000 / ewmaWindowMillis);
+            double throughput = stat.life == 0 ? sample : stat.throughput + alpha * (sample - stat.throughput);
+            stat.life = life;
+            stat.bytes = bytes;
+            setThroughput(flowId, stat, throughput);
+            // log.info("{}: life = {}, bytes = {}, throughput = {} Mbps", flowId.toString(), life, bytes, throughput);
+        }
+    }
+
+    private void setThroughput(FlowId flowId, FlowStat stat, double throughput) {
+        FlowOwner owner = flowOwners.get(flowId);
+        if (owner != null) {
+            addThroughput(owner, throughput - stat.throughput);
+        }
+        stat.throughput = throughput;
+    }
+
+    private void track(FlowId flowId, FSeid fseid, Ip4Address upfDip) {
+        FlowOwner owner = flowOwners.get(flowId);
+        if (owner != null && Objects.equals(owner.fseid, fseid) && owner.upfDip.equals(upfDip)) {
+            return;
+        }
+        untrack(flowId);
+        owner = new FlowOwner(fseid, upfDip);
+        flowOwners.put(flowId, owner);
+        if (fseid != null) {
+            sessionThroughput.computeIfAbsent(fseid, k -> new Aggregate()).rules++;
+        }
+        upfThroughput.computeIfAbsent(upfDip, k -> new Aggregate()).rules++;
+        FlowStat stat = flowStats.get(flowId);
+        if (stat != null) {
+            addThroughput(owner, stat.throughput);
+        }
+    }
+
+    private void untrack(FlowId flowId) {
+        FlowOwner owner = flowOwners.remove(flowId);
+        if (owner == null) {
+            return;
+        }
+        FlowStat stat = flowStats.get(flowId);
+        if (stat != null) {
+            addThroughput(owner, -stat.throughput);
+        }
+        if (owner.fseid != null) {
+            release(sessionThroughput, owner.fseid);
+        }
+        release(upfThroughput, owner.upfDip);
+    }
+
+    private void addThroughput(FlowOwner owner, double delta) {
+        Aggregate session = owner.fseid == null ? null : sessionThroughput.get(owner.fseid);
+        if (session != null) {
+            session.throughput = Math.max(0, session.throughput + delta);
+        }
+        Aggregate upf = upfThroughput.get(owner.upfDip);
+        if (upf != null) {
+            upf.throughput = Math.max(0, upf.throughput + delta);
+        }
+    }
+
+    private static <K> void release(ConcurrentHashMap<K, Aggregate> aggregates, K key) {
+        Aggregate aggregate = aggregates.get(key);
+        if (aggregate != null && --aggregate.rules == 0) {
+            aggregates.remove(key);
+        }
+    }
+
+    private synchronized void removeFlowStat(FlowId flowId) {
+        FlowStat stat = flowStats.remove(flowId);
+        if (stat != null) {
+            // The rule stays tracked, since it may be reinstalled, but no longer carries traffic.
+            FlowOwner owner = flowOwners.get(flowId);
+            if (owner != null) {
+                addThroughput(owner, -stat.throughput);
+            }
+        }
+    }
+
+    private class FlowOwner {
+        public FlowOwner(FSeid fseid, Ip4Address upfDip) {
+            this.fseid = fseid;
+            this.upfDip = upfDip;
+        }
+        public FSeid fseid;
+        public Ip4Address upfDip;
+    }
+
+    // Written under the lock of the collector, and read without it.
+    private class Aggregate {
+        public int rules;
+        public volatile double throughput;
+    }
+
     private class FlowStat {
         public FlowStat(long life, long bytes, long throughput) {
             this.life = life;
@@ -95,11 +265,11 @@ public class FlowRuleThroughputCollector {
             switch (event.type()) {
                 case RULE_ADD_REQUESTED:
                     // log.info("RULE_ADD_REQUESTED in {}, {}", rule.table().toString(), rule.selector().criteria());
-                    flowStats.put(rule.id(), new FlowStat(0, 0, 0));
+                    flowStats.putIfAbsent(rule.id(), new FlowStat(0, 0, 0));
                     break;
                 case RULE_REMOVE_REQUESTED:
                     // log.info("RULE_REMOVE_REQUESTED in {}, {}", rule.table().toString(), rule.selector().criteria());
-                    flowStats.remove(rule.id());
+                    removeFlowStat(rule.id());
                     break;
                 default:
                     break;
@@ -0,0 +1,227 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Coalesces the flow rule operations of a P4 switch, which are submitted within a short window (or until the
+// batch is full), into a single FlowRuleOperations, i.e. a single P4Runtime write.
+public class FlowRuleWriter {
+    protected static final Logger log = getLogger(FlowRuleWriter.class);
+    private static final long STATS_LOG_INTERVAL_MILLIS = 10000;
+
+    private FlowRuleService flowRuleService;
+    private long windowMillis;
+    private int maxBatchSize;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private ArrayList<PendingOperation> pendingOperations = new ArrayList<PendingOperation>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder failedOperations = new LongAdder();
+    private final LongAdder writeLatencyNanos = new LongAdder();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong maxWriteLatencyNanos = new AtomicLong();
+
+    public FlowRuleWriter(FlowRuleService flowRuleService, long windowMillis, int maxBatchSize) {
+        this.flowRuleService = flowRuleService;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        scheduler.scheduleAtFixedRate(() -> {
+            if (log.isDebugEnabled()) {
+                log.debug("FlowRuleWriter: {}", this);
+            }
+        }, STATS_LOG_INTERVAL_MILLIS, STATS_LOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Operations submitted together are written in the same batch, in the given order. The future of each
+    // operation is completed when its batch is written, or completed exceptionally when the write fails.
+    public synchronized ArrayList<CompletableFuture<FlowRule>> submitAll(Collection<FlowRuleOperation> ops) {
+        ArrayList<CompletableFuture<FlowRule>> futures = new ArrayList<CompletableFuture<FlowRule>>(ops.size());
+        for (FlowRuleOperation op : ops) {
+            PendingOperation pending = new PendingOperation(op);
+            pendingOperations.add(pending);
+            futures.add(pending.future);
+        }
+        if (pendingOperations.size() >= maxBatchSize) {
+            cancelScheduledFlush();
+            scheduler.execute(this::flush);
+        } else if (scheduledFlush == null && !pendingOperations.isEmpty()) {
+            scheduledFlush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return futures;
+    }
+
+    public void shutdown() {
+        flush();
+        scheduler.shutdownNow();
+        log.info("FlowRuleWriter: {}", this);
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    public long operations() {
+        return operations.sum();
+    }
+
+    public long failedOperations() {
+        return failedOperations.sum();
+    }
+
+    public double averageBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) operations.sum() / count;
+    }
+
+    public long largestBatch() {
+        return largestBatch.get();
+    }
+
+    public double averageWriteLatencyMillis() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) writeLatencyNanos.sum() / count / 1000 / 1000;
+    }
+
+    public double maxWriteLatencyMillis() {
+        return (double) maxWriteLatencyNanos.get() / 1000 / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d batches, %d operations (%d failed), batch size avg %.1f max %d, write latency avg %.2f ms max %.2f ms",
+                batches(), operations(), failedOperations(), averageBatchSize(), largestBatch(),
+                averageWriteLatencyMillis(), maxWriteLatencyMillis());
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private void flush() {
+        ArrayList<PendingOperation> batch = null;
+        synchronized (this) {
+            cancelScheduledFlush();
+            if (pendingOperations.isEmpty()) {
+                return;
+            }
+            batch = pendingOperations;
+            pendingOperations = new ArrayList<PendingOperation>();
+        }
+
+        // Operations in a stage are applied in parallel, so operations on the same flow rule are put in
+        // successive stages to keep their order. Others share a stage.
+        FlowRuleOperations.Builder builder = FlowRuleOperations.builder();
+        HashSet<FlowId> stageRules = new HashSet<FlowId>();
+        int stage = 0;
+        for (PendingOperation pending : batch) {
+            FlowRule rule = pending.operation.rule();
+            if (!stageRules.add(rule.id())) {
+                builder.newStage();
+                stage++;
+                stageRules.clear();
+                stageRules.add(rule.id());
+            }
+            pending.stage = stage;
+            switch (pending.operation.type()) {
+                case ADD:
+                    builder.add(rule);
+                    break;
+                case MODIFY:
+                    builder.modify(rule);
+                    break;
+                case REMOVE:
+                    builder.remove(rule);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        final ArrayList<PendingOperation> ops = batch;
+        final long start = System.nanoTime();
+        flowRuleService.apply(builder.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations result) {
+                record(ops.size(), System.nanoTime() - start, 0);
+                for (PendingOperation pending : ops) {
+                    pending.future.complete(pending.operation.rule());
+                }
+            }
+
+            @Override
+            public void onError(FlowRuleOperations result) {
+                // Stages after the failed one are not applied at all.
+                HashSet<FlowId> failedRules = new HashSet<FlowId>();
+                for (Set<FlowRuleOperation> failedStageOps : result.stages()) {
+                    for (FlowRuleOperation op : failedStageOps) {
+                        failedRules.add(op.rule().id());
+                    }
+                }
+                int failedStage = Integer.MAX_VALUE;
+                for (PendingOperation pending : ops) {
+                    if (failedRules.contains(pending.operation.rule().id())) {
+                        failedStage = Math.min(failedStage, pending.stage);
+                    }
+                }
+                int failures = 0;
+                for (PendingOperation pending : ops) {
+                    FlowRule rule = pending.operation.rule();
+                    if (failedRules.contains(rule.id()) || pending.stage > failedStage) {
+                        failures++;
+                        pending.future.completeExceptionally(new IllegalStateException(
+                                String.format("Failed to %s flow rule %s", pending.operation.type(), rule.id())));
+                    } else {
+                        pending.future.complete(rule);
+                    }
+                }
+                record(ops.size(), System.nanoTime() - start, failures);
+                log.info("FlowRuleWriter: {} of {} operations failed", failures, ops.size());
+            }
+        }));
+        log.debug("FlowRuleWriter: wrote {} operations in {} stages", batch.size(), stage + 1);
+    }
+
+    private void record(int size, long latencyNanos, int failures) {
+        batches.increment();
+        operations.add(size);
+        failedOperations.add(failures);
+        writeLatencyNanos.add(latencyNanos);
+        largestBatch.accumulateAndGet(size, Math::max);
+        maxWriteLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    private class PendingOperation {
+        public PendingOperation(FlowRuleOperation operation) {
+            this.operation = operation;
+            this.future = new CompletableFuture<FlowRule>();
+        }
+        public FlowRuleOperation operation;
+        public CompletableFuture<FlowRule> future;
+        public int stage;
+    }
+}
@@ -0,0 +1,138 @@
+package nctu.winlab.ha5gup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// A long-lived shell of the host-route-agent on a node. Commands are written to its stdin as "<seq> <command>"
+// lines, and it answers each of them with a "<seq> <exit status> <output>" line, so commands can be pipelined
+// without waiting for the previous ones. The shell is started again if it exits.
+public class HostRouteChannel {
+    protected static final Logger log = getLogger(HostRouteChannel.class);
+    private static final long COMMAND_TIMEOUT_MILLIS = 10000;
+
+    // Executes each line in order and acks it. Output is flattened into a single line.
+    public static final String AGENT_LOOP = "while IFS= read -r line; do "
+            + "seq=\"${line%% *}\"; cmd=\"${line#* }\"; "
+            + "out=\"$(sh -c \"$cmd\" 2>&1)\"; rc=$?; "
+            + "printf '%s %s %s\\n' \"$seq\" \"$rc\" \"$(printf '%s' \"$out\" | tr '\\n' ' ')\"; "
+            + "done";
+
+    private String name;
+    private Callable<Process> launcher;
+    private long commandTimeoutMillis;
+
+    private Connection connection;
+    private final AtomicLong nextSeq = new AtomicLong();
+
+    public HostRouteChannel(String name, Callable<Process> launcher) {
+        this(name, launcher, COMMAND_TIMEOUT_MILLIS);
+    }
+
+    HostRouteChannel(String name, Callable<Process> launcher, long commandTimeoutMillis) {
+        this.name = name;
+        this.launcher = launcher;
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    // A channel to a local shell, which stands in for the host-route-agent when testing without a cluster.
+    public static HostRouteChannel local(String name) {
+        return local(name, COMMAND_TIMEOUT_MILLIS);
+    }
+
+    static HostRouteChannel local(String name, long commandTimeoutMillis) {
+        return new HostRouteChannel(name, () -> new ProcessBuilder("sh", "-c", AGENT_LOOP).start(), commandTimeoutMillis);
+    }
+
+    // The returned future is completed with the output of the command, or completed exceptionally if the
+    // command exits with non-zero status, the channel is broken or no ack arrives in time.
+    public CompletableFuture<String> submit(String cmd) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        long seq = nextSeq.incrementAndGet();
+        try {
+            synchronized (this) {
+                if (connection == null || connection.closed || !connection.process.isAlive()) {
+                    connection = new Connection(launcher.call());
+                }
+                Connection conn = connection;
+                conn.pendingCommands.put(seq, future);
+                future.orTimeout(commandTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((r, e) -> conn.pendingCommands.remove(seq));
+                conn.writer.write(seq + " " + cmd.replace('\n', ' '));
+                conn.writer.newLine();
+                conn.writer.flush();
+            }
+            log.debug("{}: submitted #{} {}", name, seq, cmd);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public synchronized void close() {
+        if (connection != null) {
+            connection.process.destroy();
+            connection = null;
+        }
+    }
+
+    private class Connection {
+        public Connection(Process process) {
+            this.process = process;
+            this.writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            Thread reader = new Thread(this::readAcks, "host-route-channel-" + name);
+            reader.setDaemon(true);
+            reader.start();
+            log.info("{}: connected", name);
+        }
+        public Process process;
+        public BufferedWriter writer;
+        // Set once no more acks are read, even if the process hasn't been reaped yet.
+        public volatile boolean closed;
+        public final Map<Long, CompletableFuture<String>> pendingCommands = new ConcurrentHashMap<Long, CompletableFuture<String>>();
+
+        private void readAcks() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length < 2) {
+                        continue;
+                    }
+                    CompletableFuture<String> future = pendingCommands.remove(Long.parseLong(fields[0]));
+                    if (future == null) {
+                        continue;
+                    }
+                    String output = fields.length > 2 ? fields[2].trim() : "";
+                    if ("0".equals(fields[1])) {
+                        future.complete(output);
+                    } else {
+                        future.completeExceptionally(new IllegalStateException(
+                                String.format("%s: command exits with %s, %s", name, fields[1], output)));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                log.info("{}: {}", name, e.toString());
+            }
+            // Commands written to a broken shell will never be acked.
+            closed = true;
+            process.destroy();
+            for (CompletableFuture<String> future : pendingCommands.values()) {
+                future.completeExceptionally(new IllegalStateException(name + ": channel is closed"));
+            }
+            log.info("{}: disconnected", name);
+        }
+    }
+}
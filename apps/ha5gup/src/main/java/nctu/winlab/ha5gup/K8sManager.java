@@ -2,6 +2,9 @@ package nctu.winlab.ha5gup;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.onlab.packet.Ip4Address;
@@ -21,6 +24,9 @@ import static org.slf4j.LoggerFactory.getLogger;
 
 public class K8sManager {
     protected static final Logger log = getLogger(K8sManager.class);
+    private static final long ROUTE_BATCH_WINDOW_MILLIS = 2;
+    private static final int ROUTE_BATCH_MAX_SIZE = 256;
+    private static final String UPF_CAPACITY_ANNOTATION = "ha5gup/capacity-gbps";
 
     private class K8sNode {
         public K8sNode(Long port, MacAddress mac) {
@@ -33,6 +39,8 @@ public class K8sManager {
 
     private final HashMap<Ip4Address, K8sNode> nodes = new HashMap<Ip4Address, K8sNode>();
     private final HashMap<Ip4Address, String> nodeIpToHostAgentName = new HashMap<Ip4Address, String>();
+    private final ConcurrentHashMap<Ip4Address, HostRouteChannel> hostRouteChannels = new ConcurrentHashMap<Ip4Address, HostRouteChannel>();
+    private final ConcurrentHashMap<Ip4Address, RouteBatcher> routeBatchers = new ConcurrentHashMap<Ip4Address, RouteBatcher>();
     private CoreV1Api coreV1Api;
 
     public K8sManager() {
@@ -69,11 +77,72 @@ public class K8sManager {
         return intfName;
     }
 
-    public synchronized String execHostRouteAgentCommand(Ip4Address nodeIp, String cmd) {
-        return execPodCommand(nodeIpToHostAgentName.get(nodeIp), cmd);
+    // Blocks until the command is acked, and returns its output, or null if it fails.
+    public String execHostRouteAgentCommand(Ip4Address nodeIp, String cmd) {
+        try {
+            return submitHostRouteAgentCommand(nodeIp, cmd).join();
+        } catch (Exception e) {
+            log.info(e.toString());
+            return null;
+        }
+    }
+
+    // Commands are pipelined through a long-lived channel to the host-route-agent of the node. Commands to the
+    // same node are executed in the order of submission.
+    public CompletableFuture<String> submitHostRouteAgentCommand(Ip4Address nodeIp, String cmd) {
+        String podName = nodeIpToHostAgentName.get(nodeIp);
+        if (podName == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No host-route-agent runs on " + nodeIp));
+        }
+        HostRouteChannel channel = hostRouteChannels.computeIfAbsent(nodeIp, k -> new HostRouteChannel(podName,
+                () -> new Exec().exec("default", podName, new String[] { "sh", "-c", HostRouteChannel.AGENT_LOOP }, true, false)));
+        return channel.submit(cmd).whenComplete((r, e) -> {
+            if (e == null) {
+                log.debug("Command executed on {}: {}", nodeIp, cmd);
+            } else {
+                log.info("Command failed on {}: {}, {}", nodeIp, cmd, e.toString());
+            }
+        });
+    }
+
+    // Route commands ("ip route ...") to the same node are batched into a single "ip -batch" run. The returned
+    // future is completed exceptionally if this route fails, other routes of the batch are not affected.
+    public CompletableFuture<Void> submitRouteCommand(Ip4Address nodeIp, String cmd) {
+        RouteBatcher batcher = routeBatchers.computeIfAbsent(nodeIp, k -> new RouteBatcher(nodeIp.toString(),
+                batch -> submitHostRouteAgentCommand(nodeIp, batch), ROUTE_BATCH_WINDOW_MILLIS, ROUTE_BATCH_MAX_SIZE));
+        return batcher.submit(cmd).whenComplete((r, e) -> {
+            if (e != null) {
+                log.info("Route failed on {}: {}", nodeIp, e.getMessage());
+            }
+        });
+    }
+
+    public void shutdown() {
+        for (RouteBatcher batcher : routeBatchers.values()) {
+            batcher.shutdown();
+        }
+        routeBatchers.clear();
+        for (HostRouteChannel channel : hostRouteChannels.values()) {
+            channel.close();
+        }
+        hostRouteChannels.clear();
+    }
+
+    // Capacity (Gbps) from the annotation of the UPF pod, or 0 if it is not annotated.
+    public double getUpfCapacity(String podName) {
+        try {
+            V1Pod pod = coreV1Api.readNamespacedPod(podName, "default", null, null, null);
+            Map<String, String> annotations = pod.getMetadata().getAnnotations();
+            if (annotations != null && annotations.containsKey(UPF_CAPACITY_ANNOTATION)) {
+                return Double.parseDouble(annotations.get(UPF_CAPACITY_ANNOTATION).trim());
+            }
+        } catch (Exception e) {
+            log.info(e.toString());
+        }
+        return 0;
     }
 
-    public synchronized String execPodCommand(String podName, String cmd) {
+    public String execPodCommand(String podName, String cmd) {
         try {
             Exec exec = new Exec();
             final Process proc = exec.exec("default", podName, new String[] { "sh", "-c", cmd }, false, false);
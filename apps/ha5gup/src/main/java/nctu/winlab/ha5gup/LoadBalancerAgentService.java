@@ -6,76 +6,328 @@ import com.google.protobuf.Empty;
 import org.onlab.packet.Ip4Address;
 import org.slf4j.Logger;
 
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
+// Handlers decode a request, hand it over to a request queue of the controller and return, so the threads of the
+// gRPC server are never held by flow rule writes or pod commands. The response is sent when the future of the
+// request is completed. A full queue is answered with RESOURCE_EXHAUSTED right away, with a retry hint in the
+// grpc-retry-pushback-ms trailer, which gRPC clients with a retry policy honor.
 public class LoadBalancerAgentService extends LoadBalancerAgentImplBase {
     protected static final Logger log = getLogger(LoadBalancerAgentService.class);
+    private static final Metadata.Key<String> RETRY_PUSHBACK_KEY = Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER);
 
     private UpflbControl upflbControl;
+    private RequestQueue sessionRequests;
+    private RequestQueue upfRequests;
 
-    public LoadBalancerAgentService(UpflbControl upflbControl) {
+    public LoadBalancerAgentService(UpflbControl upflbControl, RequestQueue sessionRequests, RequestQueue upfRequests) {
         this.upflbControl = upflbControl;
+        this.sessionRequests = sessionRequests;
+        this.upfRequests = upfRequests;
     }
 
     public void initialize(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.InitializeRequest request,
             io.grpc.stub.StreamObserver<com.google.protobuf.Empty> responseObserver) {
         log.info("initialize");
-        upflbControl.initializeHandler(request.getCoreNetwork().getNumber(), request.getUpfServicesList());
-        log.info("initialize: done");
-
-        responseObserver.onNext(Empty.getDefaultInstance());
-        responseObserver.onCompleted();
+        respond("initialize", upfRequests, () -> {
+            upflbControl.initializeHandler(request.getCoreNetwork().getNumber(), request.getUpfServicesList());
+            return CompletableFuture.completedFuture(null);
+        }, responseObserver);
     }
 
     public void addUpf(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.AddUpfRequest request,
             io.grpc.stub.StreamObserver<com.google.protobuf.Empty> responseObserver) {
-        log.info("addUpf: {} (vip = {}, nodeIp = {})", request.getUpfDip(), request.getUpfVip(), request.getNodeIp());
-        upflbControl.addUpfHandler(request.getName(), Ip4Address.valueOf(request.getUpfDip()), Ip4Address.valueOf(request.getUpfVip()), Ip4Address.valueOf(request.getNodeIp()));
-        log.info("addUpf: done");
-
-        responseObserver.onNext(Empty.getDefaultInstance());
-        responseObserver.onCompleted();
+        log.info("addUpf: {} (vip = {}, nodeIp = {}, capacity = {} Gbps)", request.getUpfDip(), request.getUpfVip(), request.getNodeIp(), request.getCapacityGbps());
+        respond("addUpf", upfRequests, () -> {
+            upflbControl.addUpfHandler(request.getName(), Ip4Address.valueOf(request.getUpfDip()), Ip4Address.valueOf(request.getUpfVip()),
+                    Ip4Address.valueOf(request.getNodeIp()), request.getCapacityGbps());
+            return CompletableFuture.completedFuture(null);
+        }, responseObserver);
     }
 
     public void deleteUpf(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.DeleteUpfRequest request,
             io.grpc.stub.StreamObserver<com.google.protobuf.Empty> responseObserver) {
         log.info("deleteUpf: {} (vip = {})", request.getUpfDip(), request.getUpfVip());
-        upflbControl.deleteUpfHandler(Ip4Address.valueOf(request.getUpfVip()), Ip4Address.valueOf(request.getUpfDip()));
-        log.info("deleteUpf: done");
-
-        responseObserver.onNext(Empty.getDefaultInstance());
-        responseObserver.onCompleted();
+        respond("deleteUpf", upfRequests, () -> {
+            upflbControl.deleteUpfHandler(Ip4Address.valueOf(request.getUpfVip()), Ip4Address.valueOf(request.getUpfDip()));
+            return CompletableFuture.completedFuture(null);
+        }, responseObserver);
     }
 
     public void updatePfcpSession(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpdatePfcpSessionRequest request,
             io.grpc.stub.StreamObserver<com.google.protobuf.Empty> responseObserver) {
-        FSeid fseid = new FSeid(request.getFseid().getSeid(), Ip4Address.valueOf(request.getFseid().getIpv4()));
-        ArrayList<FTeid> fteids = new ArrayList<FTeid>();
-        String entryMsg = String.format("updatePfcpSession: FSEID(%s, %d), TEIDs(", fseid.getIpv4(), fseid.getSeid());
-        for (nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.FTeid fteid : request.getFteidsList()) {
-            fteids.add(new FTeid(fteid.getTeid(), Ip4Address.valueOf(fteid.getIpv4())));
-            entryMsg += String.format("%d, ", fteid.getTeid());
+        FSeid fseid;
+        List<FTeid> fteids;
+        Ip4Address ueIp;
+        try {
+            fseid = decodeFSeid(request.getFseid());
+            fteids = decodeFTeids(request);
+            ueIp = decodeUeIp(request);
+        } catch (Exception e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+        // Per-session logs are only formatted at debug level, so they cost nothing on the ingest path otherwise.
+        log.debug("updatePfcpSession: FSEID {}, F-TEIDs {}", fseid, fteids);
+        respond("updatePfcpSession", sessionRequests, () -> upflbControl.updatePfcpSessionHandler(fseid, fteids, ueIp), responseObserver);
+    }
+
+    public void deletePfcpSession(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.DeletePfcpSessionRequest request,
+            io.grpc.stub.StreamObserver<com.google.protobuf.Empty> responseObserver) {
+        FSeid fseid;
+        try {
+            fseid = decodeFSeid(request.getFseid());
+        } catch (Exception e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
         }
-        entryMsg = entryMsg.substring(0, entryMsg.length() - 2) + ")";
+        log.debug("deletePfcpSession: FSEID {}", fseid);
+        respond("deletePfcpSession", sessionRequests, () -> upflbControl.deletePfcpSessionHandler(fseid), responseObserver);
+    }
 
-        log.info(entryMsg);
-        upflbControl.updatePfcpSessionHandler(fseid, fteids, request.getUeIp().isEmpty() ? null : Ip4Address.valueOf(request.getUeIp()));
-        log.info("updatePfcpSession: done");
+    // One batch of a stream is handled at a time: the next batch is only read after the previous one is acked, so
+    // the batches of a stream are applied in order, and a stream never has more than one batch in flight.
+    public io.grpc.stub.StreamObserver<nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatch> updatePfcpSessions(
+            io.grpc.stub.StreamObserver<nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatchAck> responseObserver) {
+        ServerCallStreamObserver<nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatchAck> serverObserver =
+                (ServerCallStreamObserver<nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatchAck>) responseObserver;
+        serverObserver.disableAutoRequest();
+        serverObserver.request(1);
+        return new io.grpc.stub.StreamObserver<nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatch>() {
+            private boolean pending;
+            private boolean halfClosed;
 
-        responseObserver.onNext(Empty.getDefaultInstance());
-        responseObserver.onCompleted();
+            @Override
+            public void onNext(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatch batch) {
+                log.debug("updatePfcpSessions: batch {} with {} operations", batch.getBatchId(), batch.getOperationsCount());
+                int count = batch.getOperationsCount();
+                ArrayList<PfcpSessionOperation> operations = new ArrayList<PfcpSessionOperation>(count);
+                for (int i = 0; i < count; i++) {
+                    operations.add(decodePfcpSessionOperation(batch.getOperations(i)));
+                }
+                synchronized (this) {
+                    pending = true;
+                }
+                CompletableFuture<Void> completion = null;
+                try {
+                    completion = sessionRequests.submit(() -> upflbControl.pfcpSessionBatchHandler(operations));
+                } catch (RejectedExecutionException e) {
+                    // The stream stays open, and the batch is acked as failed, so the sender can resend it later.
+                    String error = resourceExhausted(sessionRequests).getStatus().getDescription();
+                    for (PfcpSessionOperation operation : operations) {
+                        if (operation.isSuccess()) {
+                            operation.fail(error);
+                        }
+                    }
+                    completion = CompletableFuture.completedFuture(null);
+                }
+                completion.whenComplete((v, e) -> {
+                    if (e != null) {
+                        String error = "Flow rule write failed: " + unwrap(e).toString();
+                        for (PfcpSessionOperation operation : operations) {
+                            if (operation.isSuccess()) {
+                                operation.fail(error);
+                            }
+                        }
+                    }
+                    ack(batch.getBatchId(), operations);
+                });
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.info("updatePfcpSessions: stream aborted, {}", t.toString());
+            }
+
+            @Override
+            public void onCompleted() {
+                synchronized (this) {
+                    halfClosed = true;
+                    if (pending) {
+                        // Completed once the pending batch is acked.
+                        return;
+                    }
+                }
+                responseObserver.onCompleted();
+            }
+
+            private void ack(long batchId, List<PfcpSessionOperation> operations) {
+                nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatchAck.Builder ack =
+                        nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatchAck.newBuilder().setBatchId(batchId);
+                int failed = 0;
+                for (PfcpSessionOperation operation : operations) {
+                    if (operation.isSuccess()) {
+                        ack.addAcksBuilder().setSuccess(true);
+                    } else {
+                        ack.addAcksBuilder().setSuccess(false).setError(operation.error());
+                        failed++;
+                    }
+                }
+                if (failed > 0) {
+                    log.info("updatePfcpSessions: batch {}, {} of {} operations failed", batchId, failed, operations.size());
+                }
+                log.debug("updatePfcpSessions: batch {} done", batchId);
+                try {
+                    boolean completed = false;
+                    synchronized (this) {
+                        responseObserver.onNext(ack.build());
+                        pending = false;
+                        completed = halfClosed;
+                    }
+                    if (completed) {
+                        responseObserver.onCompleted();
+                    } else {
+                        serverObserver.request(1);
+                    }
+                } catch (Exception e) {
+                    // E.g. the call has been cancelled by the sender.
+                    log.info("updatePfcpSessions: batch {} can't be acked, {}", batchId, e.toString());
+                }
+            }
+        };
     }
 
-    public void deletePfcpSession(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.DeletePfcpSessionRequest request,
+    // Submits the request to the queue, and answers the call when the future of the request is completed.
+    private void respond(String rpc, RequestQueue queue, Supplier<CompletableFuture<Void>> request,
             io.grpc.stub.StreamObserver<com.google.protobuf.Empty> responseObserver) {
-        FSeid fseid = new FSeid(request.getFseid().getSeid(), Ip4Address.valueOf(request.getFseid().getIpv4()));
-        log.info("deletePfcpSession: FSEID({}, {})", fseid.getIpv4(), fseid.getSeid());
-        upflbControl.deletePfcpSessionHandler(fseid, fseid.getIpv4());
-        log.info("deletePfcpSession: done");
+        CompletableFuture<Void> completion = null;
+        try {
+            completion = queue.submit(request);
+        } catch (RejectedExecutionException e) {
+            log.debug("{}: rejected, {}", rpc, e.getMessage());
+            responseObserver.onError(resourceExhausted(queue));
+            return;
+        }
+        completion.whenComplete((v, e) -> {
+            try {
+                if (e == null) {
+                    log.debug("{}: done", rpc);
+                    responseObserver.onNext(Empty.getDefaultInstance());
+                    responseObserver.onCompleted();
+                } else {
+                    Throwable cause = unwrap(e);
+                    log.info("{} failed: {}", rpc, cause.toString());
+                    responseObserver.onError(Status.UNKNOWN.withDescription(cause.toString()).withCause(cause).asRuntimeException());
+                }
+            } catch (Exception ex) {
+                // E.g. the call has been cancelled by the sender.
+                log.info("{}: can't respond, {}", rpc, ex.toString());
+            }
+        });
+    }
+
+    private static StatusRuntimeException resourceExhausted(RequestQueue queue) {
+        long retryAfterMillis = queue.retryAfterMillis();
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_PUSHBACK_KEY, Long.toString(retryAfterMillis));
+        return Status.RESOURCE_EXHAUSTED
+                .withDescription(String.format("%d requests in flight, retry after %d ms", queue.inFlight(), retryAfterMillis))
+                .asRuntimeException(trailers);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private PfcpSessionOperation decodePfcpSessionOperation(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionOperation operation) {
+        try {
+            switch (operation.getOperationCase()) {
+                case UPDATE: {
+                    nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpdatePfcpSessionRequest request = operation.getUpdate();
+                    nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.FSeid fseid = request.getFseid();
+                    return PfcpSessionOperation.update(fseid.getSeid(), decodeIpv4(fseid.getIpv4(), fseid.getIpv4Bin()),
+                            decodeFTeids(request), decodeUeIp(request));
+                }
+                case DELETE: {
+                    nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.FSeid fseid = operation.getDelete().getFseid();
+                    return PfcpSessionOperation.delete(fseid.getSeid(), decodeIpv4(fseid.getIpv4(), fseid.getIpv4Bin()));
+                }
+                default:
+                    return PfcpSessionOperation.rejected("Empty PFCP session operation");
+            }
+        } catch (Exception e) {
+            // Malformed addresses only fail the operation itself, not the whole batch.
+            return PfcpSessionOperation.rejected(e.toString());
+        }
+    }
+
+    private static FSeid decodeFSeid(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.FSeid fseid) {
+        return new FSeid(fseid.getSeid(), decodeIpv4(fseid.getIpv4(), fseid.getIpv4Bin()));
+    }
+
+    // A session has one or two F-TEIDs, so they are decoded into an array of that size rather than a growing list.
+    // Indexed access also spares the iterator of getFteidsList().
+    private static List<FTeid> decodeFTeids(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpdatePfcpSessionRequest request) {
+        int count = request.getFteidsCount();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        FTeid[] fteids = new FTeid[count];
+        for (int i = 0; i < count; i++) {
+            nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.FTeid fteid = request.getFteids(i);
+            fteids[i] = new FTeid(fteid.getTeid(), decodeIpv4(fteid.getIpv4(), fteid.getIpv4Bin()));
+        }
+        return Arrays.asList(fteids);
+    }
 
-        responseObserver.onNext(Empty.getDefaultInstance());
-        responseObserver.onCompleted();
+    // Returns null if the request carries no UE IP.
+    private static Ip4Address decodeUeIp(nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpdatePfcpSessionRequest request) {
+        if (request.getUeIp().isEmpty() && request.getUeIpBin() == 0) {
+            return null;
+        }
+        return Ip4Address.valueOf(decodeIpv4(request.getUeIp(), request.getUeIpBin()));
+    }
+
+    // The string form wins if both are set, so senders which don't know the binary fields are unaffected.
+    private static int decodeIpv4(String ipv4, int ipv4Bin) {
+        if (!ipv4.isEmpty()) {
+            return parseIpv4(ipv4);
+        }
+        if (ipv4Bin == 0) {
+            throw new IllegalArgumentException("Missing IPv4 address");
+        }
+        return ipv4Bin;
+    }
+
+    // Parses a dotted-quad IPv4 address into its numeric form, without the intermediate objects of
+    // Ip4Address.valueOf(String).
+    private static int parseIpv4(String ipv4) {
+        int address = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < ipv4.length(); i++) {
+            char c = ipv4.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    break;
+                }
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                address = (address << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                octet = 256;
+                break;
+            }
+        }
+        if (octet < 0 || octet > 255 || dots != 3) {
+            throw new IllegalArgumentException("Invalid IPv4 address: " + ipv4);
+        }
+        return (address << 8) | octet;
     }
 }
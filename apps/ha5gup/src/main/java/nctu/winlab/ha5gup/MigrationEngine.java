@@ -0,0 +1,235 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.onlab.packet.Ip4Address;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Runs session migrations with at most maxConcurrent migrations in flight, and at most maxConcurrentPerUpf
+// towards the same target UPF instance. Others wait in a queue. A migration is in flight from the time it is
+// started until its future, e.g. the confirmation of its flow rules, is completed.
+public class MigrationEngine {
+    protected static final Logger log = getLogger(MigrationEngine.class);
+
+    private int maxConcurrent;
+    private int maxConcurrentPerUpf;
+
+    private final ExecutorService executor;
+    private final ArrayDeque<Migration> queue = new ArrayDeque<Migration>();
+    private final HashMap<Ip4Address, Integer> runningPerUpf = new HashMap<Ip4Address, Integer>();
+    private int running;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder migrationNanos = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final AtomicLong maxMigrationNanos = new AtomicLong();
+
+    public MigrationEngine(int maxConcurrent, int maxConcurrentPerUpf) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerUpf = maxConcurrentPerUpf;
+        this.executor = newExecutor(maxConcurrent);
+    }
+
+    // Migrations block on session locks, so they run on virtual threads when the JVM has them
+    // (Java 21+). Otherwise on a pool which is as large as the number of migrations in flight.
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("MigrationEngine runs on virtual threads");
+            return executor;
+        } catch (Exception e) {
+            return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+    }
+
+    public synchronized void setLimits(int maxConcurrent, int maxConcurrentPerUpf) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerUpf = maxConcurrentPerUpf;
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            if (maxConcurrent > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(maxConcurrent);
+                pool.setCorePoolSize(maxConcurrent);
+            } else {
+                pool.setCorePoolSize(maxConcurrent);
+                pool.setMaximumPoolSize(maxConcurrent);
+            }
+        }
+        dispatch();
+    }
+
+    // Queue a migration towards targetDip. The returned future is completed with the future of the migration.
+    public CompletableFuture<Void> submit(Ip4Address targetDip, Supplier<CompletableFuture<Void>> migration) {
+        Migration m = new Migration(targetDip, migration);
+        synchronized (this) {
+            queue.add(m);
+            dispatch();
+        }
+        return m.future;
+    }
+
+    // Queue a group of migrations, and report the progress of the group in the log.
+    public CompletableFuture<Void> submitAll(String label, Ip4Address targetDip, List<Supplier<CompletableFuture<Void>>> migrations) {
+        int total = migrations.size();
+        int step = Math.max(1, total / 10);
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        ArrayList<CompletableFuture<Void>> completions = new ArrayList<CompletableFuture<Void>>(total);
+        for (Supplier<CompletableFuture<Void>> migration : migrations) {
+            completions.add(submit(targetDip, migration).whenComplete((v, e) -> {
+                if (e != null) {
+                    failures.incrementAndGet();
+                }
+                int count = done.incrementAndGet();
+                if (count % step == 0 || count == total) {
+                    log.info("{}: {}/{} migrated ({} failed), {} queued", label, count, total, failures.get(), queueDepth());
+                }
+            }));
+        }
+        return CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public synchronized int queueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int running() {
+        return running;
+    }
+
+    public long completed() {
+        return completed.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    public double averageMigrationMillis() {
+        long count = completed.sum() + failed.sum();
+        return count == 0 ? 0 : (double) migrationNanos.sum() / count / 1000 / 1000;
+    }
+
+    public double maxMigrationMillis() {
+        return (double) maxMigrationNanos.get() / 1000 / 1000;
+    }
+
+    public double averageQueueMillis() {
+        long count = completed.sum() + failed.sum();
+        return count == 0 ? 0 : (double) queueNanos.sum() / count / 1000 / 1000;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        log.info("MigrationEngine: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d queued, %d running, %d completed, %d failed, queued avg %.2f ms, migration avg %.2f ms max %.2f ms",
+                queueDepth(), running(), completed(), failed(), averageQueueMillis(), averageMigrationMillis(), maxMigrationMillis());
+    }
+
+    // Start queued migrations in order, skipping those whose target UPF instance is at its limit.
+    private synchronized void dispatch() {
+        ArrayList<Migration> rejected = null;
+        Iterator<Migration> it = queue.iterator();
+        while (running < maxConcurrent && it.hasNext()) {
+            Migration m = it.next();
+            int runningToTarget = runningPerUpf.getOrDefault(m.targetDip, 0);
+            if (runningToTarget >= maxConcurrentPerUpf) {
+                continue;
+            }
+            it.remove();
+            try {
+                executor.execute(() -> run(m));
+            } catch (RejectedExecutionException e) {
+                // After shutdown. The migration never runs, so it isn't counted as running.
+                if (rejected == null) {
+                    rejected = new ArrayList<Migration>();
+                }
+                rejected.add(m);
+                continue;
+            }
+            running++;
+            runningPerUpf.put(m.targetDip, runningToTarget + 1);
+        }
+        // Completed after the queue is walked, since a callback of the future may submit another migration.
+        if (rejected != null) {
+            for (Migration m : rejected) {
+                failed.increment();
+                m.future.completeExceptionally(new RejectedExecutionException("MigrationEngine is shut down"));
+            }
+        }
+    }
+
+    private void run(Migration m) {
+        m.startNanos = System.nanoTime();
+        queueNanos.add(m.startNanos - m.queuedNanos);
+        CompletableFuture<Void> completion = null;
+        try {
+            completion = m.migration.get();
+        } catch (Exception e) {
+            completion = CompletableFuture.failedFuture(e);
+        }
+        completion.whenComplete((v, e) -> finish(m, e));
+    }
+
+    private void finish(Migration m, Throwable error) {
+        long elapsed = System.nanoTime() - m.startNanos;
+        migrationNanos.add(elapsed);
+        maxMigrationNanos.accumulateAndGet(elapsed, Math::max);
+        if (error == null) {
+            completed.increment();
+        } else {
+            failed.increment();
+        }
+        synchronized (this) {
+            running--;
+            int runningToTarget = runningPerUpf.get(m.targetDip) - 1;
+            if (runningToTarget == 0) {
+                runningPerUpf.remove(m.targetDip);
+            } else {
+                runningPerUpf.put(m.targetDip, runningToTarget);
+            }
+            dispatch();
+        }
+        if (error == null) {
+            m.future.complete(null);
+        } else {
+            m.future.completeExceptionally(error);
+        }
+    }
+
+    private class Migration {
+        public Migration(Ip4Address targetDip, Supplier<CompletableFuture<Void>> migration) {
+            this.targetDip = targetDip;
+            this.migration = migration;
+            this.future = new CompletableFuture<Void>();
+            this.queuedNanos = System.nanoTime();
+        }
+        public Ip4Address targetDip;
+        public Supplier<CompletableFuture<Void>> migration;
+        public CompletableFuture<Void> future;
+        public long queuedNanos;
+        public long startNanos;
+    }
+}
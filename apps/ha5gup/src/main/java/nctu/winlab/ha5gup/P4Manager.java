@@ -1,8 +1,15 @@
 package nctu.winlab.ha5gup;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.onlab.packet.Ip4Address;
 import org.onlab.packet.MacAddress;
@@ -15,6 +22,7 @@ import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleEvent;
 import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.criteria.PiCriterion;
 import org.onosproject.net.pi.model.PiActionId;
@@ -26,10 +34,15 @@ import org.onosproject.net.pi.runtime.PiActionParam;
 import org.slf4j.Logger;
 
 import static org.onosproject.net.flow.FlowRuleEvent.Type.RULE_ADDED;
+import static org.onosproject.net.flow.FlowRuleEvent.Type.RULE_REMOVED;
 import static org.slf4j.LoggerFactory.getLogger;
 
 public class P4Manager {
     protected static final Logger log = getLogger(P4Manager.class);
+    private static final long FLOW_RULE_TIMEOUT_SECONDS = 10;
+    private static final long FLOW_RULE_BATCH_WINDOW_MILLIS = 2;
+    private static final int FLOW_RULE_BATCH_MAX_SIZE = 512;
+    private static final int UPF_SLOT_TABLE_SIZE = 1024;
 
     private ApplicationId appId;
     private Device dev;
@@ -37,14 +50,22 @@ public class P4Manager {
     private MacAddress virtualMac; // Virtual MAC address of the managed P4 switch.
 
     private final HashMap<Ip4Address, UpfService> upfServices = new HashMap<Ip4Address, UpfService>();
-    private final ConcurrentHashMap<FlowId, Semaphore> flowIdToSemaphore = new ConcurrentHashMap<FlowId, Semaphore>();
+    // Flow rules written to the switch but not yet confirmed by a RULE_ADDED event.
+    private final ConcurrentHashMap<FlowId, CompletableFuture<FlowRule>> pendingFlowRules = new ConcurrentHashMap<FlowId, CompletableFuture<FlowRule>>();
+    // Pending flow rules which are removed and re-installed by the same batch. Their first RULE_REMOVED is expected.
+    private final Set<FlowId> reinstalledFlowRules = ConcurrentHashMap.newKeySet();
     private final UpflbFlowRuleListener upflbFlowRuleListener = new UpflbFlowRuleListener();
+    private final FlowRuleWriter flowRuleWriter;
+    private final BitSet usedUpfSlots = new BitSet(UPF_SLOT_TABLE_SIZE);
 
     public P4Manager(ApplicationId appId, Device dev, FlowRuleService flowRuleService, MacAddress virtualMac) {
         this.appId = appId;
         this.dev = dev;
         this.flowRuleService = flowRuleService;
         this.virtualMac = virtualMac;
+        this.flowRuleWriter = new FlowRuleWriter(flowRuleService, FLOW_RULE_BATCH_WINDOW_MILLIS, FLOW_RULE_BATCH_MAX_SIZE);
+        // Slot 0 means that no slot is selected.
+        usedUpfSlots.set(0);
 
         flowRuleService.addListener(upflbFlowRuleListener);
 
@@ -67,27 +88,52 @@ public class P4Manager {
         return upfServices;
     }
 
-    public synchronized FlowRule installUpfDnatTableRule(Ip4Address vip, int teid, Ip4Address dip) {
-        try {
-            final PiCriterion.Builder criterionBuilder = PiCriterion.builder()
-                    .matchTernary(PiMatchFieldId.of("hdr.ipv4.dst_addr"), vip.toInt(), 0xffffffff)
-                    .matchTernary(PiMatchFieldId.of("hdr.gtpu.teid"), teid, 0xffffffff);
-            final PiAction piAction = PiAction.builder().withId(PiActionId.of("Ingress.upf_dnat"))
-                    .withParameter(new PiActionParam(PiActionParamId.of("upf_dip"), dip.toOctets())).build();
-            final FlowRule flowRule = DefaultFlowRule.builder().fromApp(appId).forDevice(dev.id())
-                    .forTable(PiTableId.of("Ingress.upf_dnat_table")).makePermanent().withPriority(65535)
-                    .withSelector(DefaultTrafficSelector.builder().matchPi(criterionBuilder.build()).build())
-                    .withTreatment(DefaultTrafficTreatment.builder().piTableAction(piAction).build()).build();
-            Semaphore sem = new Semaphore(1, false);
-            sem.acquire();
-            flowIdToSemaphore.put(flowRule.id(), sem);
-            flowRuleService.applyFlowRules(flowRule);
-            log.info("installUpfDnatTableRule: fteid = ({}, {}), upfDip = {}", vip, teid, dip);
-            return flowRule;
-        } catch (Exception e) {
-            log.error(e.toString());
-            return null;
+    // Maps the F-TEID to a UPF slot, whose rule in upf_slot_table selects the UPF instance.
+    public FlowRule buildUpfDnatTableRule(Ip4Address vip, int teid, int slot) {
+        return buildUpfDnatTableRule(vip, teid, 0xffffffff, slot, 65535);
+    }
+
+    // Maps a block of F-TEIDs to a UPF slot. Rules of single F-TEIDs have higher priority.
+    public FlowRule buildUpfDnatTableBlockRule(Ip4Address vip, int teidBase, int teidMask, int slot) {
+        return buildUpfDnatTableRule(vip, teidBase, teidMask, slot, 32768);
+    }
+
+    private FlowRule buildUpfDnatTableRule(Ip4Address vip, int teid, int teidMask, int slot, int priority) {
+        final PiCriterion.Builder criterionBuilder = PiCriterion.builder()
+                .matchTernary(PiMatchFieldId.of("hdr.ipv4.dst_addr"), vip.toInt(), 0xffffffff)
+                .matchTernary(PiMatchFieldId.of("hdr.gtpu.teid"), teid, teidMask);
+        final PiAction piAction = PiAction.builder().withId(PiActionId.of("Ingress.set_upf_slot"))
+                .withParameter(new PiActionParam(PiActionParamId.of("upf_slot"), slot)).build();
+        return DefaultFlowRule.builder().fromApp(appId).forDevice(dev.id())
+                .forTable(PiTableId.of("Ingress.upf_dnat_table")).makePermanent().withPriority(priority)
+                .withSelector(DefaultTrafficSelector.builder().matchPi(criterionBuilder.build()).build())
+                .withTreatment(DefaultTrafficTreatment.builder().piTableAction(piAction).build()).build();
+    }
+
+    public FlowRule buildUpfSlotTableRule(int slot, Ip4Address dip) {
+        final PiCriterion.Builder criterionBuilder = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("meta.upf_slot"), slot);
+        final PiAction piAction = PiAction.builder().withId(PiActionId.of("Ingress.upf_dnat"))
+                .withParameter(new PiActionParam(PiActionParamId.of("upf_dip"), dip.toOctets())).build();
+        return DefaultFlowRule.builder().fromApp(appId).forDevice(dev.id())
+                .forTable(PiTableId.of("Ingress.upf_slot_table")).makePermanent().withPriority(65535)
+                .withSelector(DefaultTrafficSelector.builder().matchPi(criterionBuilder.build()).build())
+                .withTreatment(DefaultTrafficTreatment.builder().piTableAction(piAction).build()).build();
+    }
+
+    // Returns -1 if upf_slot_table is full.
+    public synchronized int allocateUpfSlot() {
+        int slot = usedUpfSlots.nextClearBit(0);
+        if (slot >= UPF_SLOT_TABLE_SIZE) {
+            return -1;
         }
+        usedUpfSlots.set(slot);
+        return slot;
+    }
+
+    // The slot rule should have been submitted for removal, so a later rule of the same slot is written after it.
+    public synchronized void releaseUpfSlot(int slot) {
+        usedUpfSlots.clear(slot);
     }
 
     public synchronized FlowRule installUpfSnatTableRule(Ip4Address dip, Ip4Address vip) {
@@ -101,10 +147,7 @@ public class P4Manager {
                     .forTable(PiTableId.of("Ingress.upf_snat_table")).makePermanent().withPriority(65535)
                     .withSelector(DefaultTrafficSelector.builder().matchPi(criterionBuilder.build()).build())
                     .withTreatment(DefaultTrafficTreatment.builder().piTableAction(piAction).build()).build();
-            Semaphore sem = new Semaphore(1, false);
-            sem.acquire();
-            flowIdToSemaphore.put(flowRule.id(), sem);
-            flowRuleService.applyFlowRules(flowRule);
+            applyFlowRule(flowRule);
             log.info("installUpfSnatTableRule: upfDip = {}, upfVip = {}", dip, vip);
             return flowRule;
         } catch (Exception e) {
@@ -115,20 +158,8 @@ public class P4Manager {
 
     public synchronized FlowRule installIpRouteTableRule(Ip4Address ip, long port, MacAddress dmac) {
         try {
-            final PiCriterion.Builder criterionBuilder = PiCriterion.builder()
-                    .matchTernary(PiMatchFieldId.of("hdr.ipv4.dst_addr"), ip.toInt(), 0xffffffff);
-            final PiAction piAction = PiAction.builder().withId(PiActionId.of("Ingress.send"))
-                    .withParameter(new PiActionParam(PiActionParamId.of("port"), port))
-                    .withParameter(new PiActionParam(PiActionParamId.of("smac"), virtualMac.toBytes()))
-                    .withParameter(new PiActionParam(PiActionParamId.of("dmac"), dmac.toBytes())).build();
-            final FlowRule flowRule = DefaultFlowRule.builder().fromApp(appId).forDevice(dev.id())
-                    .forTable(PiTableId.of("Ingress.ip_route_table")).makePermanent().withPriority(65535)
-                    .withSelector(DefaultTrafficSelector.builder().matchPi(criterionBuilder.build()).build())
-                    .withTreatment(DefaultTrafficTreatment.builder().piTableAction(piAction).build()).build();
-            Semaphore sem = new Semaphore(1, false);
-            sem.acquire();
-            flowIdToSemaphore.put(flowRule.id(), sem);
-            flowRuleService.applyFlowRules(flowRule);
+            final FlowRule flowRule = buildIpRouteTableRule(ip, port, dmac);
+            applyFlowRule(flowRule);
             log.info("installIpRouteTableRule: ip = {}, switchPort = {}, mac = {}", ip, port, dmac);
             return flowRule;
         } catch (Exception e) {
@@ -137,14 +168,114 @@ public class P4Manager {
         }
     }
 
-    public void waitFlowRulesActionComplete(FlowRule... rules) {
-        try {
-            for (FlowRule rule : rules) {
-                flowIdToSemaphore.get(rule.id()).acquire();
-                flowIdToSemaphore.remove(rule.id());
+    public FlowRule buildIpRouteTableRule(Ip4Address ip, long port, MacAddress dmac) {
+        final PiCriterion.Builder criterionBuilder = PiCriterion.builder()
+                .matchTernary(PiMatchFieldId.of("hdr.ipv4.dst_addr"), ip.toInt(), 0xffffffff);
+        final PiAction piAction = PiAction.builder().withId(PiActionId.of("Ingress.send"))
+                .withParameter(new PiActionParam(PiActionParamId.of("port"), port))
+                .withParameter(new PiActionParam(PiActionParamId.of("smac"), virtualMac.toBytes()))
+                .withParameter(new PiActionParam(PiActionParamId.of("dmac"), dmac.toBytes())).build();
+        return DefaultFlowRule.builder().fromApp(appId).forDevice(dev.id())
+                .forTable(PiTableId.of("Ingress.ip_route_table")).makePermanent().withPriority(65535)
+                .withSelector(DefaultTrafficSelector.builder().matchPi(criterionBuilder.build()).build())
+                .withTreatment(DefaultTrafficTreatment.builder().piTableAction(piAction).build()).build();
+    }
+
+    // Route a UE IP block. Rules of single UE IPs have higher priority.
+    public FlowRule buildIpRouteTablePrefixRule(Ip4Address prefix, int prefixLength, long port, MacAddress dmac) {
+        final PiCriterion.Builder criterionBuilder = PiCriterion.builder()
+                .matchTernary(PiMatchFieldId.of("hdr.ipv4.dst_addr"), prefix.toInt(), (int) (0xffffffffL << (32 - prefixLength)));
+        final PiAction piAction = PiAction.builder().withId(PiActionId.of("Ingress.send"))
+                .withParameter(new PiActionParam(PiActionParamId.of("port"), port))
+                .withParameter(new PiActionParam(PiActionParamId.of("smac"), virtualMac.toBytes()))
+                .withParameter(new PiActionParam(PiActionParamId.of("dmac"), dmac.toBytes())).build();
+        return DefaultFlowRule.builder().fromApp(appId).forDevice(dev.id())
+                .forTable(PiTableId.of("Ingress.ip_route_table")).makePermanent().withPriority(32768 + prefixLength)
+                .withSelector(DefaultTrafficSelector.builder().matchPi(criterionBuilder.build()).build())
+                .withTreatment(DefaultTrafficTreatment.builder().piTableAction(piAction).build()).build();
+    }
+
+    // Write a flow rule to the switch. The returned future is completed when the switch confirms the rule,
+    // or completed exceptionally when the write fails, the rule is removed or it times out.
+    public CompletableFuture<FlowRule> applyFlowRule(FlowRule rule) {
+        return applyFlowRuleBatch(Collections.emptyList(), Collections.singletonList(rule)).thenApply(v -> rule);
+    }
+
+    public CompletableFuture<Void> applyFlowRules(Collection<FlowRule> rules) {
+        return applyFlowRuleBatch(Collections.emptyList(), rules);
+    }
+
+    public void removeFlowRules(FlowRule... rules) {
+        ArrayList<FlowRuleOperation> ops = new ArrayList<FlowRuleOperation>(rules.length);
+        for (FlowRule rule : rules) {
+            ops.add(new FlowRuleOperation(rule, FlowRuleOperation.Type.REMOVE));
+        }
+        flowRuleWriter.submitAll(ops);
+    }
+
+    // Remove and install a group of flow rules in the same write to the switch. Removals are placed
+    // in an earlier stage, so a rule which is removed and re-installed in the same batch stays installed.
+    // The returned future is completed when all installed rules are confirmed.
+    public synchronized CompletableFuture<Void> applyFlowRuleBatch(Collection<FlowRule> rulesToRemove, Collection<FlowRule> rulesToInstall) {
+        if (rulesToRemove.isEmpty() && rulesToInstall.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ArrayList<FlowRuleOperation> ops = new ArrayList<FlowRuleOperation>(rulesToRemove.size() + rulesToInstall.size());
+        HashSet<FlowId> removedIds = new HashSet<FlowId>();
+        for (FlowRule rule : rulesToRemove) {
+            ops.add(new FlowRuleOperation(rule, FlowRuleOperation.Type.REMOVE));
+            removedIds.add(rule.id());
+        }
+        ArrayList<CompletableFuture<FlowRule>> completions = new ArrayList<CompletableFuture<FlowRule>>(rulesToInstall.size());
+        for (FlowRule rule : rulesToInstall) {
+            CompletableFuture<FlowRule> future = track(rule);
+            if (removedIds.contains(rule.id())) {
+                reinstalledFlowRules.add(rule.id());
+                future.whenComplete((r, e) -> reinstalledFlowRules.remove(rule.id()));
             }
-        } catch (Exception e) {
-            log.info(e.toString());
+            completions.add(future);
+            ops.add(new FlowRuleOperation(rule, FlowRuleOperation.Type.ADD));
+        }
+
+        ArrayList<CompletableFuture<FlowRule>> writes = flowRuleWriter.submitAll(ops);
+        for (int i = 0; i < ops.size(); i++) {
+            FlowRuleOperation op = ops.get(i);
+            if (op.type() == FlowRuleOperation.Type.ADD) {
+                writes.get(i).whenComplete((r, e) -> {
+                    if (e != null) {
+                        fail(op.rule(), e.getMessage());
+                    }
+                });
+            }
+        }
+        log.debug("applyFlowRuleBatch: {} removed, {} installed", rulesToRemove.size(), rulesToInstall.size());
+        return CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<FlowRule> track(FlowRule rule) {
+        CompletableFuture<FlowRule> future = new CompletableFuture<FlowRule>();
+        pendingFlowRules.compute(rule.id(), (id, previous) -> {
+            // A modification (same FlowId) of a pending rule also settles the earlier write.
+            if (previous != null) {
+                future.whenComplete((r, e) -> {
+                    if (e == null) {
+                        previous.complete(r);
+                    } else {
+                        previous.completeExceptionally(e);
+                    }
+                });
+            }
+            return future;
+        });
+        future.orTimeout(FLOW_RULE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((r, e) -> pendingFlowRules.remove(rule.id(), future));
+        return future;
+    }
+
+    private void fail(FlowRule rule, String reason) {
+        CompletableFuture<FlowRule> future = pendingFlowRules.remove(rule.id());
+        if (future != null) {
+            future.completeExceptionally(new IllegalStateException(reason));
         }
     }
 
@@ -152,6 +283,10 @@ public class P4Manager {
         flowRuleService.removeListener(upflbFlowRuleListener);
     }
 
+    public void shutdown() {
+        flowRuleWriter.shutdown();
+    }
+
     public MacAddress getVirtualMac() {
         return virtualMac;
     }
@@ -160,12 +295,18 @@ public class P4Manager {
         @Override
         public void event(FlowRuleEvent event) {
             FlowRule rule = event.subject();
-            if (rule.deviceId().equals(dev.id()) && rule.appId() == appId.id() && event.type().equals(RULE_ADDED)) {
+            if (!rule.deviceId().equals(dev.id()) || rule.appId() != appId.id()) {
+                return;
+            }
+            if (event.type().equals(RULE_ADDED)) {
                 // log.info("ADDED of {}, {}, {}", rule.tableId(), rule.selector().criteria(),
                 // rule.treatment().immediate());
-                if (flowIdToSemaphore.containsKey(rule.id())) {
-                    flowIdToSemaphore.get(rule.id()).release();
+                CompletableFuture<FlowRule> future = pendingFlowRules.remove(rule.id());
+                if (future != null) {
+                    future.complete(rule);
                 }
+            } else if (event.type().equals(RULE_REMOVED) && !reinstalledFlowRules.remove(rule.id())) {
+                fail(rule, "Flow rule " + rule.id() + " is removed before being added");
             }
         }
     }
@@ -1,32 +1,37 @@
 package nctu.winlab.ha5gup;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.function.BiConsumer;
+import java.util.Arrays;
 
 import org.onlab.packet.Ip4Address;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
 
 public class PfcpSession implements Comparable<PfcpSession> {
-    private FSeid fseid;
+    private static final long[] NO_ENDPOINTS = new long[0];
+
+    private final FSeid fseid;
     private Ip4Address upfDip;
-    private Ip4Address ueIp;
-    // TODO: I think fteidToDnatRules should only have 2 entries for ULCL, and 1 entry for PSA.
-    //       Maybe I should get rid of the HashMap.
-    private HashMap<FTeid, FlowRule> fteidToDnatRules;
-    private FlowRule n6DlRoutingRule; // N6 downlink routing rule.
-    private Double throughput; // up/downlink throughput of the PfcpSession (Gbps)
+    private final Ip4Address ueIp;
+    // GTP-U endpoints, 2 for ULCL and 1 for PSA, as pairs of the packed F-TEID, see FTeid.key(), and the flow id
+    // of its DNAT rule, which is 0 if the F-TEID is covered by the rule of its TEID block.
+    // Flow rules are not kept, but rebuilt when they are removed, see UpflbControl.dnatRule().
+    // Copy-on-write: the array is never modified once published, so readers need neither a lock nor a copy.
+    private volatile long[] endpoints;
+    private long n6DlRoutingFlowId; // Flow id of the N6 downlink routing rule, or 0 if there is none.
+    private boolean ueIpBlockRouted; // N6 downlink is routed by the prefix of the UE IP block instead.
+    private UpfSlot upfSlot;
+    private long placedAtMillis; // When the session is set up or migrated to its current UPF instance.
+    private volatile double throughput; // up/downlink throughput of the PfcpSession (Gbps)
 
     public PfcpSession(FSeid fseid, Ip4Address upfDip, Ip4Address ueIp) {
         this.fseid = fseid;
         this.upfDip = upfDip;
         this.ueIp = ueIp;
-        this.fteidToDnatRules = new HashMap<FTeid, FlowRule>();
-        this.throughput = Double.valueOf(0);
+        this.endpoints = NO_ENDPOINTS;
+        this.placedAtMillis = System.currentTimeMillis();
     }
 
-    public synchronized FSeid fseid() {
+    public FSeid fseid() {
         return fseid;
     }
 
@@ -36,46 +41,122 @@ public class PfcpSession implements Comparable<PfcpSession> {
 
     public synchronized void setUpfDip(Ip4Address upfDip) {
         this.upfDip = upfDip;
+        this.placedAtMillis = System.currentTimeMillis();
+    }
+
+    // How long the session has been on its current UPF instance.
+    public synchronized long residencyMillis() {
+        return System.currentTimeMillis() - placedAtMillis;
+    }
+
+    public synchronized boolean ueIpBlockRouted() {
+        return ueIpBlockRouted;
+    }
+
+    public synchronized void setUeIpBlockRouted(boolean ueIpBlockRouted) {
+        this.ueIpBlockRouted = ueIpBlockRouted;
+    }
+
+    // Whether some traffic of the session is matched by TEID or UE IP block rules shared with other sessions.
+    public synchronized boolean usesBlockRules() {
+        if (ueIpBlockRouted) {
+            return true;
+        }
+        long[] endpoints = this.endpoints;
+        for (int i = 1; i < endpoints.length; i += 2) {
+            if (endpoints[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized UpfSlot upfSlot() {
+        return upfSlot;
     }
 
-    public synchronized Ip4Address ueIp() {
+    public synchronized void setUpfSlot(UpfSlot upfSlot) {
+        this.upfSlot = upfSlot;
+    }
+
+    public Ip4Address ueIp() {
         return ueIp;
     }
 
-    public synchronized void forEachEndpoint(BiConsumer<FTeid, FlowRule> action) {
-        fteidToDnatRules.forEach(action);
+    // Endpoints are only added, so indexes below endpointCount() stay valid.
+    public int endpointCount() {
+        return endpoints.length / 2;
+    }
+
+    public FTeid endpoint(int index) {
+        return FTeid.of(endpoints[2 * index]);
+    }
+
+    // Whether the F-TEID has its own DNAT rule, instead of being covered by the rule of its TEID block.
+    public boolean hasDnatRule(int index) {
+        return endpoints[2 * index + 1] != 0;
+    }
+
+    // Flow id of the DNAT rule of the F-TEID, or null if it is covered by the rule of its TEID block.
+    public FlowId dnatFlowId(int index) {
+        long flowId = endpoints[2 * index + 1];
+        return flowId == 0 ? null : FlowId.valueOf(flowId);
     }
 
-    public synchronized Map<FTeid, FlowRule> fteidToDnatRules() {
-        return Collections.unmodifiableMap(new HashMap<FTeid, FlowRule>(fteidToDnatRules));
+    public boolean hasEndpoint(FTeid fteid) {
+        long key = fteid.key();
+        long[] endpoints = this.endpoints;
+        for (int i = 0; i < endpoints.length; i += 2) {
+            if (endpoints[i] == key) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public synchronized void setFteidToDnatRules(HashMap<FTeid, FlowRule> fteidToDnatRules) {
-        this.fteidToDnatRules = fteidToDnatRules;
+    // The rule is null if the F-TEID is covered by the rule of its TEID block.
+    public synchronized void addEndpoint(FTeid fteid, FlowRule dnatRule) {
+        long[] added = Arrays.copyOf(endpoints, endpoints.length + 2);
+        added[endpoints.length] = fteid.key();
+        added[endpoints.length + 1] = dnatRule == null ? 0 : dnatRule.id().value();
+        endpoints = added;
     }
 
-    public synchronized boolean hasEndpoint(FTeid fteid) {
-        return fteidToDnatRules.containsKey(fteid);
+    // Replaces the DNAT rules of all endpoints, e.g. after a migration, where each F-TEID gets its own rule.
+    // dnatRules is indexed like the endpoints.
+    public synchronized void setDnatRules(FlowRule[] dnatRules) {
+        long[] replaced = endpoints.clone();
+        for (int i = 0; i < dnatRules.length; i++) {
+            replaced[2 * i + 1] = dnatRules[i] == null ? 0 : dnatRules[i].id().value();
+        }
+        endpoints = replaced;
     }
 
-    public synchronized void addEndpoint(FTeid fteid, FlowRule rule) {
-        fteidToDnatRules.put(fteid, rule);
+    public synchronized boolean hasN6DlRoutingRule() {
+        return n6DlRoutingFlowId != 0;
     }
 
-    public synchronized FlowRule n6DlRoutingRule() {
-        return n6DlRoutingRule;
+    // Flow id of the N6 downlink routing rule, or null if there is none.
+    public synchronized FlowId n6DlRoutingFlowId() {
+        return n6DlRoutingFlowId == 0 ? null : FlowId.valueOf(n6DlRoutingFlowId);
     }
 
     public synchronized void setN6DlRoutingRule(FlowRule rule) {
-        n6DlRoutingRule = rule;
+        n6DlRoutingFlowId = rule == null ? 0 : rule.id().value();
+    }
+
+    // Flow rules and routes written to migrate the session on its own: a DNAT rule per F-TEID, plus the N6
+    // routing rule and the route of the UE.
+    public int migrationCost() {
+        return endpointCount() + 2;
     }
 
     public double throughput() {
-        return throughput.doubleValue();
+        return throughput;
     }
 
     public void updateThroughput(double throughput) {
-        this.throughput = Double.valueOf(throughput);
+        this.throughput = throughput;
     }
 
     @Override
@@ -0,0 +1,109 @@
+package nctu.winlab.ha5gup;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.onlab.packet.Ip4Address;
+
+// A single update/delete of a PFCP session carried by a session batch.
+// The result of the operation is recorded in place, so the caller can ack each item.
+// The F-SEID is kept as primitives, so an operation on a known session is looked up without an FSeid, see
+// PfcpSessionStore.get(long, int).
+public class PfcpSessionOperation {
+    public enum PfcpSessionOperationType {
+        PFCP_SESSION_OPERATION_UPDATE,
+        PFCP_SESSION_OPERATION_DELETE;
+    }
+
+    private PfcpSessionOperationType type;
+    private long seid;
+    private int ipv4; // IPv4 of the F-SEID, i.e. the VIP of the UPF service.
+    private FSeid fseid; // Built on demand, see fseid().
+    private List<FTeid> fteids;
+    private Ip4Address ueIp;
+    private String error;
+
+    private PfcpSessionOperation(PfcpSessionOperationType type, long seid, int ipv4, List<FTeid> fteids, Ip4Address ueIp) {
+        this.type = type;
+        this.seid = seid;
+        this.ipv4 = ipv4;
+        this.fteids = fteids;
+        this.ueIp = ueIp;
+    }
+
+    public static PfcpSessionOperation update(FSeid fseid, List<FTeid> fteids, Ip4Address ueIp) {
+        PfcpSessionOperation operation = update(fseid.getSeid(), fseid.getIpv4Int(), fteids, ueIp);
+        operation.fseid = fseid;
+        return operation;
+    }
+
+    public static PfcpSessionOperation update(long seid, int ipv4, List<FTeid> fteids, Ip4Address ueIp) {
+        return new PfcpSessionOperation(PfcpSessionOperationType.PFCP_SESSION_OPERATION_UPDATE, seid, ipv4, fteids, ueIp);
+    }
+
+    public static PfcpSessionOperation delete(FSeid fseid) {
+        PfcpSessionOperation operation = delete(fseid.getSeid(), fseid.getIpv4Int());
+        operation.fseid = fseid;
+        return operation;
+    }
+
+    public static PfcpSessionOperation delete(long seid, int ipv4) {
+        return new PfcpSessionOperation(PfcpSessionOperationType.PFCP_SESSION_OPERATION_DELETE, seid, ipv4, Collections.emptyList(), null);
+    }
+
+    // An operation which could not be decoded. It is acked as failed without being processed.
+    public static PfcpSessionOperation rejected(String error) {
+        PfcpSessionOperation operation = new PfcpSessionOperation(null, 0, 0, Collections.emptyList(), null);
+        operation.fail(error);
+        return operation;
+    }
+
+    public PfcpSessionOperationType type() {
+        return type;
+    }
+
+    public long seid() {
+        return seid;
+    }
+
+    public int ipv4() {
+        return ipv4;
+    }
+
+    // Same as fseid().hashCode(), without building the FSeid.
+    public int fseidHash() {
+        return FSeid.hash(seid, ipv4);
+    }
+
+    public FSeid fseid() {
+        if (fseid == null) {
+            fseid = new FSeid(seid, ipv4);
+        }
+        return fseid;
+    }
+
+    public List<FTeid> fteids() {
+        return fteids;
+    }
+
+    public Ip4Address ueIp() {
+        return ueIp;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public String error() {
+        return error;
+    }
+
+    public void fail(String error) {
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return type == null ? "rejected" : String.format("%s %s", type, fseid());
+    }
+}
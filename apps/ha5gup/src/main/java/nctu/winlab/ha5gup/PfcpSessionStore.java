@@ -0,0 +1,68 @@
+package nctu.winlab.ha5gup;
+
+// PFCP sessions indexed by F-SEID, see PfcpSessionTable.
+// The store is split into segments, each guarded by its own lock, so sessions of different segments are
+// updated concurrently, and a segment grows without rehashing the others.
+public class PfcpSessionStore {
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+    private final PfcpSessionTable[] segments = new PfcpSessionTable[1 << SEGMENT_BITS];
+
+    public PfcpSessionStore() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new PfcpSessionTable(INITIAL_SEGMENT_CAPACITY);
+        }
+    }
+
+    public PfcpSession get(FSeid fseid) {
+        int hash = fseid.hashCode();
+        return segmentFor(hash).get(fseid.getSeid(), fseid.getIpv4Int(), hash);
+    }
+
+    // Looks up the session without an FSeid, e.g. straight from the fields of a request.
+    public PfcpSession get(long seid, int ipv4) {
+        int hash = FSeid.hash(seid, ipv4);
+        return segmentFor(hash).get(seid, ipv4, hash);
+    }
+
+    // Returns the session previously stored under the F-SEID of the session, or null if there is none.
+    public PfcpSession put(PfcpSession session) {
+        FSeid fseid = session.fseid();
+        int hash = fseid.hashCode();
+        return segmentFor(hash).put(fseid.getSeid(), fseid.getIpv4Int(), hash, session);
+    }
+
+    // Returns the removed session, or null if there is none.
+    public PfcpSession remove(FSeid fseid) {
+        int hash = fseid.hashCode();
+        return segmentFor(hash).remove(fseid.getSeid(), fseid.getIpv4Int(), hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (PfcpSessionTable segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    // Bytes taken by the tables, assuming compressed references, not counting the sessions themselves.
+    public long tableBytes() {
+        long bytes = 0;
+        for (PfcpSessionTable segment : segments) {
+            bytes += segment.tableBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d sessions, %d table bytes", size(), tableBytes());
+    }
+
+    // The hash is FSeid.hash(), whose low bits select the slot in a segment, and high bits the segment.
+    private PfcpSessionTable segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+}
@@ -0,0 +1,132 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// PFCP sessions keyed by F-SEID. Keys are kept as primitives in an open-addressing table (linear probing), so
+// a session costs 16 bytes per slot of the table instead of a map node, and a lookup compares primitives
+// without touching key objects. An F-SEID doesn't fit in a long (64-bit SEID and IPv4), so the SEID
+// and the IPv4 are kept in parallel arrays. The slot of a key is picked by the low bits of FSeid.hash().
+// Each method holds the lock of the table.
+class PfcpSessionTable {
+    private long[] seids;
+    private int[] ipv4s;
+    private PfcpSession[] sessions; // null marks an empty slot.
+    private int size;
+
+    public PfcpSessionTable(int capacity) {
+        allocate(capacity);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long tableBytes() {
+        return (long) seids.length * (Long.BYTES + Integer.BYTES + Integer.BYTES);
+    }
+
+    public synchronized PfcpSession get(long seid, int ipv4, int hash) {
+        int slot = find(seid, ipv4, hash);
+        return slot < 0 ? null : sessions[slot];
+    }
+
+    public synchronized PfcpSession put(long seid, int ipv4, int hash, PfcpSession session) {
+        int slot = find(seid, ipv4, hash);
+        if (slot >= 0) {
+            PfcpSession previous = sessions[slot];
+            sessions[slot] = session;
+            return previous;
+        }
+        // Load factor 3/4.
+        if (4 * (size + 1) > 3 * sessions.length) {
+            grow();
+        }
+        int mask = sessions.length - 1;
+        slot = hash & mask;
+        while (sessions[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        seids[slot] = seid;
+        ipv4s[slot] = ipv4;
+        sessions[slot] = session;
+        size++;
+        return null;
+    }
+
+    public synchronized PfcpSession remove(long seid, int ipv4, int hash) {
+        int slot = find(seid, ipv4, hash);
+        if (slot < 0) {
+            return null;
+        }
+        PfcpSession removed = sessions[slot];
+        // Backward-shift deletion: move later entries of the probe sequence into the hole, so no tombstone
+        // is left behind and lookups still stop at the first empty slot.
+        int mask = sessions.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (sessions[next] != null) {
+            int home = FSeid.hash(seids[next], ipv4s[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                seids[hole] = seids[next];
+                ipv4s[hole] = ipv4s[next];
+                sessions[hole] = sessions[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        sessions[hole] = null;
+        size--;
+        return removed;
+    }
+
+    // A snapshot of the sessions, in no particular order.
+    public synchronized List<PfcpSession> sessions() {
+        ArrayList<PfcpSession> snapshot = new ArrayList<PfcpSession>(size);
+        for (PfcpSession session : sessions) {
+            if (session != null) {
+                snapshot.add(session);
+            }
+        }
+        return snapshot;
+    }
+
+    // Returns the slot of the key, or -1 if it is absent.
+    private int find(long seid, int ipv4, int hash) {
+        int mask = sessions.length - 1;
+        int slot = hash & mask;
+        while (sessions[slot] != null) {
+            if (seids[slot] == seid && ipv4s[slot] == ipv4) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void grow() {
+        long[] oldSeids = seids;
+        int[] oldIpv4s = ipv4s;
+        PfcpSession[] oldSessions = sessions;
+        allocate(oldSessions.length * 2);
+        int mask = sessions.length - 1;
+        for (int i = 0; i < oldSessions.length; i++) {
+            if (oldSessions[i] == null) {
+                continue;
+            }
+            int slot = FSeid.hash(oldSeids[i], oldIpv4s[i]) & mask;
+            while (sessions[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            seids[slot] = oldSeids[i];
+            ipv4s[slot] = oldIpv4s[i];
+            sessions[slot] = oldSessions[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        seids = new long[capacity];
+        ipv4s = new int[capacity];
+        sessions = new PfcpSession[capacity];
+    }
+}
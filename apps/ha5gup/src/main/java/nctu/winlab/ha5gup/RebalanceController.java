@@ -0,0 +1,153 @@
+package nctu.winlab.ha5gup;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.onlab.packet.Ip4Address;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Damps the overload/rebalance loop, so sessions don't ping-pong between UPF instances:
+// - A UPF instance is only rebalanced above the high watermark (the alert threshold), and then down to the low
+//   watermark, so a small fluctuation right after a rebalance doesn't trigger another one.
+// - Both the source and the targets of a rebalance are in cooldown for a while, during which alerts of them
+//   are suppressed, since the load they report is not settled yet.
+// - A session is only migrated again after staying on its UPF instance for the minimum residency time.
+// - At most budgetSessions sessions are migrated per budget window, summed over all UPF services.
+public class RebalanceController {
+    public enum Decision {
+        REBALANCE_EXECUTED,
+        REBALANCE_SUPPRESSED_COOLDOWN,
+        REBALANCE_SUPPRESSED_BELOW_WATERMARK,
+        REBALANCE_SUPPRESSED_NO_ELIGIBLE_SESSION,
+        REBALANCE_SUPPRESSED_BUDGET,
+        // No UPF instance has room for any of the sessions.
+        REBALANCE_SUPPRESSED_NO_CAPACITY,
+        // Sessions were placed, but none of their migrations completed.
+        REBALANCE_FAILED;
+    }
+
+    protected static final Logger log = getLogger(RebalanceController.class);
+
+    private volatile long cooldownMillis;
+    private volatile long minResidencyMillis;
+    private volatile double lowWatermarkRatio;
+    private long budgetSessions;
+    private long budgetWindowMillis;
+
+    private final ConcurrentHashMap<Ip4Address, Long> cooldownUntil = new ConcurrentHashMap<Ip4Address, Long>();
+    private long budgetWindowStart;
+    private long budgetUsed;
+    private final EnumMap<Decision, LongAdder> decisions = new EnumMap<Decision, LongAdder>(Decision.class);
+    private final LongAdder residentSessions = new LongAdder();
+
+    public RebalanceController(long cooldownMillis, long minResidencyMillis, double lowWatermarkRatio, long budgetSessions, long budgetWindowMillis) {
+        for (Decision decision : Decision.values()) {
+            decisions.put(decision, new LongAdder());
+        }
+        setCooldown(cooldownMillis);
+        setMinResidency(minResidencyMillis);
+        setLowWatermarkRatio(lowWatermarkRatio);
+        setBudget(budgetSessions, budgetWindowMillis);
+    }
+
+    public void setCooldown(long cooldownMillis) {
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    public void setMinResidency(long minResidencyMillis) {
+        this.minResidencyMillis = minResidencyMillis;
+    }
+
+    // Fraction of the high watermark a rebalanced UPF instance is brought down to.
+    public void setLowWatermarkRatio(double lowWatermarkRatio) {
+        this.lowWatermarkRatio = lowWatermarkRatio;
+    }
+
+    public synchronized void setBudget(long budgetSessions, long budgetWindowMillis) {
+        this.budgetSessions = budgetSessions;
+        this.budgetWindowMillis = budgetWindowMillis;
+    }
+
+    public double lowWatermark(double highWatermark) {
+        return highWatermark * lowWatermarkRatio;
+    }
+
+    public boolean isInCooldown(Ip4Address dip) {
+        Long until = cooldownUntil.get(dip);
+        return until != null && System.currentTimeMillis() < until;
+    }
+
+    // Whether the session has stayed on its UPF instance long enough to be migrated.
+    public boolean isEligible(PfcpSession session) {
+        if (session.residencyMillis() >= minResidencyMillis) {
+            return true;
+        }
+        residentSessions.increment();
+        return false;
+    }
+
+    // Takes sessions from the migration budget of the current window. Returns false, and takes nothing, if the
+    // budget left is not enough.
+    public synchronized boolean acquireBudget(int sessions) {
+        long now = System.currentTimeMillis();
+        if (now - budgetWindowStart >= budgetWindowMillis) {
+            budgetWindowStart = now;
+            budgetUsed = 0;
+        }
+        if (budgetUsed + sessions > budgetSessions) {
+            return false;
+        }
+        budgetUsed += sessions;
+        return true;
+    }
+
+    // Gives back sessions which were budgeted but not migrated, e.g. because they couldn't be placed.
+    public synchronized void releaseBudget(int sessions) {
+        budgetUsed = Math.max(0, budgetUsed - sessions);
+    }
+
+    // Records a rebalance from source to targets, which puts all of them in cooldown.
+    public void executed(Ip4Address source, Collection<Ip4Address> targets) {
+        long until = System.currentTimeMillis() + cooldownMillis;
+        cooldownUntil.put(source, until);
+        for (Ip4Address target : targets) {
+            cooldownUntil.put(target, until);
+        }
+        record(Decision.REBALANCE_EXECUTED, source);
+    }
+
+    // Records a rebalance which moved nothing, so neither the source nor the targets cool down.
+    public void failed(Ip4Address dip) {
+        record(Decision.REBALANCE_FAILED, dip);
+    }
+
+    public void suppressed(Decision decision, Ip4Address dip) {
+        record(decision, dip);
+    }
+
+    public void forget(Ip4Address dip) {
+        cooldownUntil.remove(dip);
+    }
+
+    public long count(Decision decision) {
+        return decisions.get(decision).sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Decision decision : Decision.values()) {
+            sb.append(decision).append(' ').append(count(decision)).append(", ");
+        }
+        return sb.append(residentSessions.sum()).append(" sessions held back by residency").toString();
+    }
+
+    private void record(Decision decision, Ip4Address dip) {
+        decisions.get(decision).increment();
+        log.info("{} for {}, {}", decision, dip, this);
+    }
+}
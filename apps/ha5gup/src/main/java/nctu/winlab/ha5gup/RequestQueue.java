@@ -0,0 +1,152 @@
+package nctu.winlab.ha5gup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Runs requests of the gRPC service on a pool of controller threads, so the threads of the gRPC server only decode
+// requests and hand them over. At most maxInFlight requests are in flight, from the time they are submitted until
+// their future, e.g. the confirmation of their flow rules, is completed. More are rejected right away rather than
+// queued, so the sender gets backpressure instead of an ever growing latency.
+public class RequestQueue {
+    protected static final Logger log = getLogger(RequestQueue.class);
+    // Bounds of the retry hint given with a rejection.
+    private static final long MIN_RETRY_MILLIS = 10;
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    private String name;
+    private volatile int maxInFlight;
+
+    private volatile ThreadPoolExecutor executor;
+    private int inFlight;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder requestNanos = new LongAdder();
+    private final AtomicLong maxRequestNanos = new AtomicLong();
+    // EWMA of the request time, which the retry hint is derived from.
+    private volatile double recentRequestNanos;
+
+    public RequestQueue(String name, int threads, int maxInFlight) {
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        this.executor = newExecutor(threads, maxInFlight);
+    }
+
+    public synchronized void setLimits(int threads, int maxInFlight) {
+        if (maxInFlight != this.maxInFlight) {
+            // The queue is sized by the limit, so it is replaced. Requests queued on the old executor still run.
+            this.maxInFlight = maxInFlight;
+            ThreadPoolExecutor old = executor;
+            executor = newExecutor(threads, maxInFlight);
+            old.shutdown();
+            return;
+        }
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    // Runs the request on a controller thread. The returned future is completed with the future of the request.
+    // Throws RejectedExecutionException if maxInFlight requests are already in flight.
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                rejected.increment();
+                throw new RejectedExecutionException(String.format("%s: %d requests in flight", name, inFlight));
+            }
+            inFlight++;
+            executor = this.executor;
+        }
+        accepted.increment();
+        long startNanos = System.nanoTime();
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                CompletableFuture<T> completion = null;
+                try {
+                    completion = request.get();
+                } catch (Exception e) {
+                    completion = CompletableFuture.failedFuture(e);
+                }
+                completion.whenComplete((v, e) -> {
+                    finish(startNanos, e);
+                    if (e == null) {
+                        future.complete(v);
+                    } else {
+                        future.completeExceptionally(e);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // After shutdown, or if the executor is replaced by setLimits() meanwhile.
+            finish(startNanos, e);
+            throw e;
+        }
+        return future;
+    }
+
+    // How long a rejected sender should wait before retrying: about the time the requests in flight take to drain.
+    public long retryAfterMillis() {
+        int threads = Math.max(1, executor.getMaximumPoolSize());
+        long millis = (long) (recentRequestNanos / 1000 / 1000 * inFlight() / threads);
+        return Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, millis));
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public double averageRequestMillis() {
+        long count = completed.sum() + failed.sum();
+        return count == 0 ? 0 : (double) requestNanos.sum() / count / 1000 / 1000;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        log.info("RequestQueue: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d in flight, %d accepted, %d rejected, %d completed, %d failed, request avg %.2f ms max %.2f ms",
+                name, inFlight(), accepted.sum(), rejected.sum(), completed.sum(), failed.sum(), averageRequestMillis(),
+                (double) maxRequestNanos.get() / 1000 / 1000);
+    }
+
+    // No more than maxInFlight requests are ever queued, so the queue is sized by the limit.
+    private static ThreadPoolExecutor newExecutor(int threads, int maxInFlight) {
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxInFlight));
+    }
+
+    private void finish(long startNanos, Throwable error) {
+        long elapsed = System.nanoTime() - startNanos;
+        requestNanos.add(elapsed);
+        maxRequestNanos.accumulateAndGet(elapsed, Math::max);
+        recentRequestNanos = recentRequestNanos == 0 ? elapsed : recentRequestNanos + 0.1 * (elapsed - recentRequestNanos);
+        if (error == null) {
+            completed.increment();
+        } else {
+            failed.increment();
+        }
+        synchronized (this) {
+            inFlight--;
+        }
+    }
+}
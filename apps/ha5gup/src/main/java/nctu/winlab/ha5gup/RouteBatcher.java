@@ -0,0 +1,149 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Coalesces the ip commands to a node, which are submitted within a short window (or until the batch is full),
+// into a single "ip -force -batch -" run through the host-route-agent, so N routes cost one round trip.
+// With -force, ip keeps going after a failed line and reports it as "Command failed -:<line>".
+public class RouteBatcher {
+    protected static final Logger log = getLogger(RouteBatcher.class);
+    private static final Pattern FAILED_LINE = Pattern.compile("Command failed -:(\\d+)");
+
+    private String name;
+    private Function<String, CompletableFuture<String>> channel;
+    private long windowMillis;
+    private int maxBatchSize;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private ArrayList<PendingRoute> pendingRoutes = new ArrayList<PendingRoute>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder routes = new LongAdder();
+    private final LongAdder failedRoutes = new LongAdder();
+
+    public RouteBatcher(String name, Function<String, CompletableFuture<String>> channel, long windowMillis, int maxBatchSize) {
+        this.name = name;
+        this.channel = channel;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    // cmd is a full ip command, e.g. "ip route add 10.60.0.1/32 dev eth0". The returned future is completed
+    // when the batch containing it is run, or completed exceptionally if that line of the batch fails.
+    public synchronized CompletableFuture<Void> submit(String cmd) {
+        PendingRoute pending = new PendingRoute(cmd);
+        if (!cmd.startsWith("ip ") || cmd.indexOf('\'') >= 0 || cmd.indexOf('\n') >= 0) {
+            pending.future.completeExceptionally(new IllegalArgumentException("Not a batchable ip command: " + cmd));
+            return pending.future;
+        }
+        pendingRoutes.add(pending);
+        if (pendingRoutes.size() >= maxBatchSize) {
+            cancelScheduledFlush();
+            scheduler.execute(this::flush);
+        } else if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return pending.future;
+    }
+
+    public void shutdown() {
+        flush();
+        scheduler.shutdownNow();
+        log.info("RouteBatcher {}: {}", name, this);
+    }
+
+    @Override
+    public String toString() {
+        long count = batches.sum();
+        return String.format("%d batches, %d routes (%d failed), batch size avg %.1f",
+                count, routes.sum(), failedRoutes.sum(), count == 0 ? 0 : (double) routes.sum() / count);
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private void flush() {
+        ArrayList<PendingRoute> batch = null;
+        synchronized (this) {
+            cancelScheduledFlush();
+            if (pendingRoutes.isEmpty()) {
+                return;
+            }
+            batch = pendingRoutes;
+            pendingRoutes = new ArrayList<PendingRoute>();
+        }
+
+        // Drop the leading "ip", each line of the batch is an ip command without it.
+        StringBuilder cmd = new StringBuilder("printf '%s\\n'");
+        for (PendingRoute pending : batch) {
+            cmd.append(" '").append(pending.cmd.substring(3)).append('\'');
+        }
+        cmd.append(" | ip -force -batch - 2>&1; true");
+
+        final ArrayList<PendingRoute> routesInBatch = batch;
+        channel.apply(cmd.toString()).whenComplete((output, e) -> {
+            batches.increment();
+            routes.add(routesInBatch.size());
+            if (e != null) {
+                failedRoutes.add(routesInBatch.size());
+                for (PendingRoute pending : routesInBatch) {
+                    pending.future.completeExceptionally(e);
+                }
+                return;
+            }
+            HashMap<Integer, String> errors = parseErrors(output);
+            failedRoutes.add(errors.size());
+            for (int i = 0; i < routesInBatch.size(); i++) {
+                PendingRoute pending = routesInBatch.get(i);
+                String error = errors.get(i + 1);
+                if (error == null) {
+                    pending.future.complete(null);
+                } else {
+                    pending.future.completeExceptionally(new IllegalStateException(
+                            String.format("%s: %s failed, %s", name, pending.cmd, error)));
+                }
+            }
+        });
+        log.debug("RouteBatcher {}: submitted {} routes", name, batch.size());
+    }
+
+    // Maps each failed line (1-based) to the error printed before its "Command failed" marker.
+    private static HashMap<Integer, String> parseErrors(String output) {
+        HashMap<Integer, String> errors = new HashMap<Integer, String>();
+        Matcher matcher = FAILED_LINE.matcher(output);
+        int start = 0;
+        while (matcher.find()) {
+            errors.put(Integer.parseInt(matcher.group(1)), output.substring(start, matcher.start()).trim());
+            start = matcher.end();
+        }
+        return errors;
+    }
+
+    private class PendingRoute {
+        public PendingRoute(String cmd) {
+            this.cmd = cmd;
+            this.future = new CompletableFuture<Void>();
+        }
+        public String cmd;
+        public CompletableFuture<Void> future;
+    }
+}
@@ -0,0 +1,198 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Chooses which sessions of an overloaded UPF instance to migrate, so that their throughput exceeds the excess
+// of the UPF instance. At least one session always stays.
+public class SessionSubsetSelector {
+    public enum SessionSubsetStrategy {
+        // Take the smallest sessions until the excess is shed.
+        SESSION_SUBSET_STRATEGY_GREEDY_SMALLEST,
+        // Migrate as few sessions as possible.
+        SESSION_SUBSET_STRATEGY_FEWEST_SESSIONS,
+        // Write as few flow rules and routes as possible, see PfcpSession.migrationCost().
+        SESSION_SUBSET_STRATEGY_MIN_MIGRATION_COST;
+    }
+
+    protected static final Logger log = getLogger(SessionSubsetSelector.class);
+    // Above this many DP cells (sessions x cost bound), the greedy-by-density subset is used as is.
+    private static final long MAX_DP_CELLS = 1L << 24;
+
+    private volatile SessionSubsetStrategy strategy;
+
+    public SessionSubsetSelector(SessionSubsetStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public void setStrategy(SessionSubsetStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    // Returns an empty list if the excess can't be shed without migrating all sessions.
+    // The throughput of the sessions must be updated beforehand.
+    public List<PfcpSession> select(List<PfcpSession> sessions, double excess) {
+        SessionSubsetStrategy strategy = this.strategy;
+        List<PfcpSession> subset = null;
+        switch (strategy) {
+            case SESSION_SUBSET_STRATEGY_FEWEST_SESSIONS:
+                subset = selectMinCost(sessions, excess, false);
+                break;
+            case SESSION_SUBSET_STRATEGY_MIN_MIGRATION_COST:
+                subset = selectMinCost(sessions, excess, true);
+                break;
+            case SESSION_SUBSET_STRATEGY_GREEDY_SMALLEST:
+            default:
+                subset = selectGreedySmallest(sessions, excess);
+                break;
+        }
+        if (subset.size() >= sessions.size()) {
+            subset = new ArrayList<PfcpSession>();
+        }
+        double throughput = 0;
+        int cost = 0;
+        for (PfcpSession session : subset) {
+            throughput += session.throughput();
+            cost += session.migrationCost();
+        }
+        log.info("select: {} selects {} of {} sessions, {} Gbps for excess {} Gbps, migration cost {}",
+                strategy, subset.size(), sessions.size(), throughput, excess, cost);
+        return subset;
+    }
+
+    // The original strategy, which never migrates the largest session.
+    private static List<PfcpSession> selectGreedySmallest(List<PfcpSession> sessions, double excess) {
+        ArrayList<PfcpSession> sorted = new ArrayList<PfcpSession>(sessions);
+        Collections.sort(sorted);
+        for (int i = 0; i < sorted.size() - 1; i++) {
+            excess -= sorted.get(i).throughput();
+            if (excess < 0) {
+                return new ArrayList<PfcpSession>(sorted.subList(0, i + 1));
+            }
+        }
+        return new ArrayList<PfcpSession>();
+    }
+
+    // 0/1 knapsack over the cost: best[c] is the most throughput which can be migrated at cost c, and the answer
+    // is the smallest c whose best[c] exceeds the excess. The cost of the greedy-by-density subset bounds c.
+    // The DP maximizes the throughput at each cost, so trimOvershoot then swaps in smaller sessions.
+    private static List<PfcpSession> selectMinCost(List<PfcpSession> sessions, double excess, boolean weighted) {
+        int n = sessions.size();
+        int[] costs = new int[n];
+        double[] throughputs = new double[n];
+        for (int i = 0; i < n; i++) {
+            costs[i] = weighted ? Math.max(1, sessions.get(i).migrationCost()) : 1;
+            throughputs[i] = sessions.get(i).throughput();
+        }
+
+        boolean[] selected = selectByDensity(costs, throughputs, excess);
+        if (selected == null) {
+            return new ArrayList<PfcpSession>();
+        }
+        int bound = 0;
+        for (int i = 0; i < n; i++) {
+            if (selected[i]) {
+                bound += costs[i];
+            }
+        }
+
+        if ((long) n * (bound + 1) <= MAX_DP_CELLS) {
+            double[] best = new double[bound + 1];
+            Arrays.fill(best, Double.NEGATIVE_INFINITY);
+            best[0] = 0;
+            BitSet[] taken = new BitSet[n];
+            for (int i = 0; i < n; i++) {
+                taken[i] = new BitSet(bound + 1);
+                for (int c = bound; c >= costs[i]; c--) {
+                    double throughput = best[c - costs[i]] + throughputs[i];
+                    if (throughput > best[c]) {
+                        best[c] = throughput;
+                        taken[i].set(c);
+                    }
+                }
+            }
+            int cost = 0;
+            while (cost < bound && !(best[cost] > excess)) {
+                cost++;
+            }
+            if (best[cost] > excess) {
+                selected = new boolean[n];
+                for (int i = n - 1; i >= 0 && cost > 0; i--) {
+                    if (taken[i].get(cost)) {
+                        selected[i] = true;
+                        cost -= costs[i];
+                    }
+                }
+            }
+        }
+
+        trimOvershoot(costs, throughputs, selected, excess);
+        ArrayList<PfcpSession> subset = new ArrayList<PfcpSession>();
+        for (int i = 0; i < n; i++) {
+            if (selected[i]) {
+                subset.add(sessions.get(i));
+            }
+        }
+        return subset;
+    }
+
+    // Takes sessions in descending throughput per cost until the excess is shed, or returns null if even all of
+    // them don't shed it.
+    private static boolean[] selectByDensity(int[] costs, double[] throughputs, double excess) {
+        int n = costs.length;
+        ArrayList<Integer> order = new ArrayList<Integer>(n);
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingDouble((Integer i) -> throughputs[i] / costs[i]).reversed());
+        boolean[] selected = new boolean[n];
+        for (int i : order) {
+            selected[i] = true;
+            excess -= throughputs[i];
+            if (excess < 0) {
+                return selected;
+            }
+        }
+        return null;
+    }
+
+    // Replaces selected sessions by smaller unselected ones of no higher cost, as long as the excess is still shed,
+    // so the target UPF instances receive no more load than needed.
+    private static void trimOvershoot(int[] costs, double[] throughputs, boolean[] selected, double excess) {
+        int n = costs.length;
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            if (selected[i]) {
+                total += throughputs[i];
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!selected[i]) {
+                continue;
+            }
+            int replacement = -1;
+            for (int j = 0; j < n; j++) {
+                if (selected[j] || costs[j] > costs[i] || throughputs[j] >= throughputs[i]) {
+                    continue;
+                }
+                if (total - throughputs[i] + throughputs[j] > excess
+                        && (replacement < 0 || throughputs[j] < throughputs[replacement])) {
+                    replacement = j;
+                }
+            }
+            if (replacement >= 0) {
+                selected[i] = false;
+                selected[replacement] = true;
+                total += throughputs[replacement] - throughputs[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package nctu.winlab.ha5gup;
+
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+import org.onosproject.net.flow.FlowRule;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Hands out aligned TEID blocks to UPF slots. All F-TEIDs of a block are matched by a single masked rule of
+// upf_dnat_table pointing to the slot which owns the block, so an F-TEID only needs its own rule when its
+// session is not in that slot, e.g. after the session is migrated.
+// The rule of a new block is handed to the caller, which writes it with the flow rules of the session, so the
+// session is only acked once the rule is confirmed. The session stays locked until its rules are submitted, so
+// the block can't be emptied, and its rule removed, before the rule is written.
+// Traffic of a block rule can't be told apart per session, so it is accounted to the UPF instance of the slot.
+public class TeidBlockAllocator {
+    protected static final Logger log = getLogger(TeidBlockAllocator.class);
+
+    private int blockBits;
+    private int blockMask;
+    private FlowRuleThroughputCollector flowRuleThroughputCollector;
+    private final HashMap<Long, TeidBlock> blocks = new HashMap<Long, TeidBlock>();
+    private long coveredEndpoints;
+
+    public TeidBlockAllocator(int blockBits, FlowRuleThroughputCollector flowRuleThroughputCollector) {
+        this.blockBits = blockBits;
+        this.blockMask = ~((1 << blockBits) - 1);
+        this.flowRuleThroughputCollector = flowRuleThroughputCollector;
+    }
+
+    // Slot which new sessions of the F-TEID's block should join, or null if there is none.
+    // Adopted slots don't take new sessions.
+    public synchronized UpfSlot slotOf(FTeid fteid) {
+        TeidBlock block = blocks.get(key(fteid));
+        if (block == null || block.slot.adopted()) {
+            return null;
+        }
+        return block.slot;
+    }
+
+    // Returns true if the F-TEID is covered by the rule of its block. If the block is free, it is assigned to the
+    // slot, and its rule is passed to install.
+    // Returns false if the block is owned by another slot, then the F-TEID needs its own rule.
+    public synchronized boolean acquire(P4Manager p4Manager, FTeid fteid, UpfSlot slot, Consumer<FlowRule> install) {
+        long key = key(fteid);
+        TeidBlock block = blocks.get(key);
+        if (block == null) {
+            FlowRule rule = p4Manager.buildUpfDnatTableBlockRule(fteid.getIpv4(), fteid.getTeid() & blockMask, blockMask, slot.id());
+            install.accept(rule);
+            flowRuleThroughputCollector.trackUpfRule(rule.id(), slot.upfDip());
+            block = new TeidBlock(slot, rule);
+            blocks.put(key, block);
+            if (log.isDebugEnabled()) {
+                log.debug("acquire: TEID block {}/{} of {} is assigned to {}", fteid.getTeid() & blockMask, 32 - blockBits, fteid.getIpv4(), slot);
+            }
+        } else if (block.slot != slot) {
+            return false;
+        }
+        block.endpoints++;
+        coveredEndpoints++;
+        return true;
+    }
+
+    // Called when a covered F-TEID is deleted or leaves its block. The rule of an empty block is passed to remove,
+    // which should submit the removal right away, since a new block of the same TEIDs may be written next.
+    public synchronized void release(FTeid fteid, Consumer<FlowRule> remove) {
+        long key = key(fteid);
+        TeidBlock block = blocks.get(key);
+        if (block == null) {
+            return;
+        }
+        coveredEndpoints--;
+        if (--block.endpoints == 0) {
+            remove.accept(block.rule);
+            flowRuleThroughputCollector.untrackUpfRule(block.rule.id());
+            blocks.remove(key);
+        }
+    }
+
+    // Called when the slot is moved to another UPF instance. Its block rules still point to the slot, but their
+    // traffic is now accounted to the new UPF instance.
+    public synchronized void slotMoved(UpfSlot slot) {
+        for (TeidBlock block : blocks.values()) {
+            if (block.slot == slot) {
+                flowRuleThroughputCollector.trackUpfRule(block.rule.id(), slot.upfDip());
+            }
+        }
+    }
+
+    public int blockBits() {
+        return blockBits;
+    }
+
+    public synchronized int blocks() {
+        return blocks.size();
+    }
+
+    // Average number of F-TEIDs covered by a block rule.
+    public synchronized double occupancy() {
+        return blocks.isEmpty() ? 0 : (double) coveredEndpoints / blocks.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d TEID blocks of %d, %d F-TEIDs covered, %.1f per block", blocks.size(), 1 << blockBits,
+                coveredEndpoints, occupancy());
+    }
+
+    private long key(FTeid fteid) {
+        return ((long) fteid.getIpv4Int() << 32) | ((fteid.getTeid() & blockMask) & 0xffffffffL);
+    }
+
+    private class TeidBlock {
+        public TeidBlock(UpfSlot slot, FlowRule rule) {
+            this.slot = slot;
+            this.rule = rule;
+        }
+        public UpfSlot slot;
+        public FlowRule rule;
+        public int endpoints;
+    }
+}
@@ -0,0 +1,106 @@
+package nctu.winlab.ha5gup;
+
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.flow.FlowRule;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+// Partitions the UE IP pool into aligned blocks, each owned by the UPF instance which serves the first session
+// of the block. The N6 downlink of a block is routed by a single prefix rule in ip_route_table and a single
+// prefix route on the node of the owner. A session which is not served by the owner of its block, e.g. after
+// being migrated, is routed by its own /32 rule and route, which take precedence.
+// Block routes are written while holding the lock of the allocator, so writes of the same block are ordered. The
+// rule of a new block is handed to the caller, which writes it with the flow rules of the session, like the rule
+// of a TEID block, see TeidBlockAllocator.
+public class UeIpBlockAllocator {
+    protected static final Logger log = getLogger(UeIpBlockAllocator.class);
+
+    private int prefixLength;
+    private int blockMask;
+    private K8sManager k8sManager;
+    private FlowRuleThroughputCollector flowRuleThroughputCollector;
+    private final HashMap<Integer, UeIpBlock> blocks = new HashMap<Integer, UeIpBlock>();
+    private long coveredSessions;
+
+    public UeIpBlockAllocator(int prefixLength, K8sManager k8sManager, FlowRuleThroughputCollector flowRuleThroughputCollector) {
+        this.prefixLength = prefixLength;
+        this.blockMask = (int) (0xffffffffL << (32 - prefixLength));
+        this.k8sManager = k8sManager;
+        this.flowRuleThroughputCollector = flowRuleThroughputCollector;
+    }
+
+    // UPF instance which owns the block of the UE IP, or null if the block is free.
+    public synchronized UpfInstance ownerOf(Ip4Address ueIp) {
+        UeIpBlock block = blocks.get(ueIp.toInt() & blockMask);
+        return block == null ? null : block.owner;
+    }
+
+    // Returns true if the downlink of the UE is routed by the prefix of its block. If the block is free, it is
+    // assigned to the UPF instance, its route is added, and its rule is passed to install.
+    // Returns false if the block is owned by another UPF instance, then the UE needs its own /32 route.
+    public synchronized boolean acquire(P4Manager p4Manager, Ip4Address ueIp, UpfInstance upf, Consumer<FlowRule> install) {
+        int base = ueIp.toInt() & blockMask;
+        UeIpBlock block = blocks.get(base);
+        if (block == null) {
+            Ip4Address prefix = Ip4Address.valueOf(base);
+            FlowRule rule = p4Manager.buildIpRouteTablePrefixRule(prefix, prefixLength, upf.nodePortNumber(), upf.nodeMac());
+            install.accept(rule);
+            flowRuleThroughputCollector.trackUpfRule(rule.id(), upf.ip());
+            String cmd = String.format("ip route add %s/%d proto static dev %s", prefix, prefixLength, upf.getHostIntfName());
+            k8sManager.submitRouteCommand(upf.nodeIp(), cmd);
+            block = new UeIpBlock(upf, rule);
+            blocks.put(base, block);
+            log.debug("acquire: UE IP block {}/{} is assigned to {}", prefix, prefixLength, upf.name());
+        } else if (block.owner != upf) {
+            return false;
+        }
+        block.sessions++;
+        coveredSessions++;
+        return true;
+    }
+
+    // Called when a covered session is deleted or leaves its block. The route of an empty block is removed, and
+    // its rule is passed to remove, which should submit the removal right away.
+    public synchronized void release(Ip4Address ueIp, Consumer<FlowRule> remove) {
+        int base = ueIp.toInt() & blockMask;
+        UeIpBlock block = blocks.get(base);
+        if (block == null) {
+            return;
+        }
+        coveredSessions--;
+        if (--block.sessions == 0) {
+            blocks.remove(base);
+            remove.accept(block.rule);
+            flowRuleThroughputCollector.untrackUpfRule(block.rule.id());
+            String cmd = String.format("ip route del %s/%d dev %s", Ip4Address.valueOf(base), prefixLength, block.owner.getHostIntfName());
+            k8sManager.submitRouteCommand(block.owner.nodeIp(), cmd);
+        }
+    }
+
+    public int prefixLength() {
+        return prefixLength;
+    }
+
+    public synchronized int blocks() {
+        return blocks.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d UE IP blocks of /%d, %d sessions covered", blocks.size(), prefixLength, coveredSessions);
+    }
+
+    private class UeIpBlock {
+        public UeIpBlock(UpfInstance owner, FlowRule rule) {
+            this.owner = owner;
+            this.rule = rule;
+        }
+        public UpfInstance owner;
+        public FlowRule rule;
+        public int sessions;
+    }
+}
@@ -1,8 +1,9 @@
 package nctu.winlab.ha5gup;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.onlab.packet.Ip4Address;
 import org.onlab.packet.MacAddress;
 import org.onosproject.net.flow.FlowRule;
@@ -15,8 +16,9 @@ public class UpfInstance implements Comparable<UpfInstance> {
     private Ip4Address nodeIp;
     private FlowRule snatRule;
     private FlowRule routingRule;
-    private HashMap<FSeid, PfcpSession> pfcpSessions;
+    private final CopyOnWriteArrayList<UpfSlot> slots;
     private Double throughput; // Receiving throughput of the UPF instance (Gbps)
+    private volatile double capacity; // Throughput the UPF instance is sized for (Gbps)
 
     public UpfInstance(String name, Ip4Address ip, Long nodePortNumber, MacAddress nodeMac, Ip4Address nodeIp, FlowRule snatRule, FlowRule routingRule) {
         this.name = name;
@@ -26,8 +28,9 @@ public class UpfInstance implements Comparable<UpfInstance> {
         this.nodeIp = nodeIp;
         this.snatRule = snatRule;
         this.routingRule = routingRule;
-        this.pfcpSessions = new HashMap<FSeid, PfcpSession>();
+        this.slots = new CopyOnWriteArrayList<UpfSlot>();
         this.throughput = Double.valueOf(0);
+        this.capacity = 1;
     }
 
     public String name() {
@@ -58,16 +61,54 @@ public class UpfInstance implements Comparable<UpfInstance> {
         return routingRule;
     }
 
-    public synchronized Map<FSeid, PfcpSession> pfcpSessions() {
-        return Collections.unmodifiableMap(new HashMap<FSeid, PfcpSession>(pfcpSessions));
+    // The sessions of the UPF instance are those of its slots, so they are not indexed twice. The snapshot is
+    // taken slot by slot, so a session moved between slots meanwhile may be missed or seen twice.
+    public List<PfcpSession> pfcpSessions() {
+        ArrayList<PfcpSession> sessions = new ArrayList<PfcpSession>();
+        for (UpfSlot slot : slots) {
+            sessions.addAll(slot.pfcpSessions());
+        }
+        return sessions;
     }
 
-    public synchronized void addPfcpSession(PfcpSession session) {
-        pfcpSessions.put(session.fseid(), session);
+    public int sessionCount() {
+        int count = 0;
+        for (UpfSlot slot : slots) {
+            count += slot.size();
+        }
+        return count;
     }
 
-    public synchronized void removePfcpSession(FSeid fseid) {
-        pfcpSessions.remove(fseid);
+    // A live view, whose iterators work on a snapshot of the slots.
+    public List<UpfSlot> slots() {
+        return Collections.unmodifiableList(slots);
+    }
+
+    public void addSlot(UpfSlot slot) {
+        slots.add(slot);
+    }
+
+    public void removeSlot(UpfSlot slot) {
+        slots.remove(slot);
+    }
+
+    // New and migrated sessions are put into the slot created for this UPF instance with the fewest sessions.
+    public UpfSlot homeSlot() {
+        UpfSlot selected = null;
+        for (UpfSlot slot : slots) {
+            if (!slot.adopted() && (selected == null || slot.size() < selected.size())) {
+                selected = slot;
+            }
+        }
+        return selected;
+    }
+
+    public double capacity() {
+        return capacity;
+    }
+
+    public void setCapacity(double capacity) {
+        this.capacity = capacity;
     }
 
     public double throughput() {
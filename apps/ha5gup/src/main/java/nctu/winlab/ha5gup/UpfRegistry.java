@@ -0,0 +1,66 @@
+package nctu.winlab.ha5gup;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.onlab.packet.Ip4Address;
+
+// UPF instances of all UPF services, indexed by VIP, DIP and pod name, so no lookup scans the services.
+// Writes are serialized, and an instance is added to the VIP index last and removed from it first, so an instance
+// which can be selected through its UPF service is always found by the other indexes.
+public class UpfRegistry {
+    private final ConcurrentHashMap<Ip4Address, ConcurrentHashMap<Ip4Address, UpfInstance>> vipToUpfInstances = new ConcurrentHashMap<Ip4Address, ConcurrentHashMap<Ip4Address, UpfInstance>>();
+    private final ConcurrentHashMap<Ip4Address, UpfInstance> dipToUpfInstance = new ConcurrentHashMap<Ip4Address, UpfInstance>();
+    private final ConcurrentHashMap<Ip4Address, Ip4Address> dipToVip = new ConcurrentHashMap<Ip4Address, Ip4Address>();
+    private final ConcurrentHashMap<String, UpfInstance> nameToUpfInstance = new ConcurrentHashMap<String, UpfInstance>();
+
+    public synchronized void add(Ip4Address vip, UpfInstance upf) {
+        dipToUpfInstance.put(upf.ip(), upf);
+        dipToVip.put(upf.ip(), vip);
+        nameToUpfInstance.put(upf.name(), upf);
+        vipToUpfInstances.computeIfAbsent(vip, k -> new ConcurrentHashMap<Ip4Address, UpfInstance>()).put(upf.ip(), upf);
+    }
+
+    // Returns the removed UPF instance, or null if it is not registered under the VIP.
+    public synchronized UpfInstance remove(Ip4Address vip, Ip4Address dip) {
+        ConcurrentHashMap<Ip4Address, UpfInstance> upfInstances = vipToUpfInstances.get(vip);
+        UpfInstance upf = upfInstances == null ? null : upfInstances.remove(dip);
+        if (upf == null) {
+            return null;
+        }
+        dipToUpfInstance.remove(dip, upf);
+        dipToVip.remove(dip, vip);
+        nameToUpfInstance.remove(upf.name(), upf);
+        return upf;
+    }
+
+    // UPF instances of the UPF service keyed by DIP, or an empty map if there is none. The map is a live view.
+    public Map<Ip4Address, UpfInstance> instancesOf(Ip4Address vip) {
+        ConcurrentHashMap<Ip4Address, UpfInstance> upfInstances = vipToUpfInstances.get(vip);
+        return upfInstances == null ? Collections.<Ip4Address, UpfInstance>emptyMap() : Collections.unmodifiableMap(upfInstances);
+    }
+
+    public UpfInstance get(Ip4Address vip, Ip4Address dip) {
+        ConcurrentHashMap<Ip4Address, UpfInstance> upfInstances = vipToUpfInstances.get(vip);
+        return upfInstances == null ? null : upfInstances.get(dip);
+    }
+
+    public UpfInstance byDip(Ip4Address dip) {
+        return dipToUpfInstance.get(dip);
+    }
+
+    public Ip4Address vipOf(Ip4Address dip) {
+        return dipToVip.get(dip);
+    }
+
+    public UpfInstance byName(String name) {
+        return nameToUpfInstance.get(name);
+    }
+
+    // All UPF instances of all UPF services. The collection is a live view.
+    public Collection<UpfInstance> all() {
+        return Collections.unmodifiableCollection(dipToUpfInstance.values());
+    }
+}
@@ -2,17 +2,27 @@ package nctu.winlab.ha5gup;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
-import java.math.BigDecimal;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.onlab.packet.Ip4Address;
 import org.slf4j.Logger;
@@ -23,78 +33,338 @@ public class UpfSelector {
     public enum UpfSelectorCriteria {
         UPF_SELECTOR_CRITERIA_POD_CPU_USAGE,
         UPF_SELECTOR_CRITERIA_NODE_CPU_USAGE,
-        UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT;
+        UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT,
+        // Uplink DNAT and N6 downlink routing throughput counted by the P4 switches.
+        UPF_SELECTOR_CRITERIA_SWITCH_THROUGHPUT;
+    }
+
+    public enum UpfPlacementMode {
+        // The UPF instance with the least estimated load.
+        UPF_PLACEMENT_MODE_LEAST_LOADED,
+        // The less loaded of two random UPF instances.
+        UPF_PLACEMENT_MODE_POWER_OF_TWO_CHOICES,
+        // The less loaded of the two UPF instances ranked highest by rendezvous hashing on the FSEID.
+        UPF_PLACEMENT_MODE_RENDEZVOUS_TWO_CHOICES;
     }
 
     protected static final Logger log = getLogger(UpfSelector.class);
+    // Prometheus is queried from the refresher thread, so a stuck query would stall the refresh.
+    private static final Duration PROMETHEUS_CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration PROMETHEUS_REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    // The snapshot is reported stale once it is older than this many refresh intervals.
+    private static final int STALE_REFRESH_INTERVALS = 3;
+    // Load assumed for a new session when no session carries any load yet (Gbps).
+    private static final double MIN_SESSION_LOAD_GBPS = 0.001;
 
     private UpfSelectorCriteria criteria;
-    private HashMap<Ip4Address, HashMap<Ip4Address, UpfInstance>> upfIpToUpfInstance;
+    private UpfRegistry upfRegistry;
+    private FlowRuleThroughputCollector flowRuleThroughputCollector;
+    // Fraction of the overload threshold left free on each UPF instance when sessions are allocated to it.
+    private volatile double headroomRatio;
+    private volatile UpfPlacementMode placementMode = UpfPlacementMode.UPF_PLACEMENT_MODE_LEAST_LOADED;
+
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(PROMETHEUS_CONNECT_TIMEOUT).build();
+    private final ObjectReader jsonReader = new ObjectMapper().reader();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> refreshTask;
+    private volatile long refreshIntervalMillis;
+    private boolean stale; // Only accessed by the refresher thread.
+
+    // Per-UPF load from the latest refresh, and the sessions assigned to each UPF since then.
+    private volatile LoadSnapshot loadSnapshot = new LoadSnapshot(new HashMap<Ip4Address, Double>(), new HashMap<Ip4Address, Integer>());
+    private final ConcurrentHashMap<Ip4Address, AtomicInteger> assignedSinceRefresh = new ConcurrentHashMap<Ip4Address, AtomicInteger>();
 
-    public UpfSelector(UpfSelectorCriteria criteria, HashMap<Ip4Address, HashMap<Ip4Address, UpfInstance>> upfIpToUpfInstance) {
+    public UpfSelector(UpfSelectorCriteria criteria, UpfRegistry upfRegistry,
+            FlowRuleThroughputCollector flowRuleThroughputCollector, long refreshIntervalMillis) {
         this.criteria = criteria;
-        this.upfIpToUpfInstance = upfIpToUpfInstance;
+        this.upfRegistry = upfRegistry;
+        this.flowRuleThroughputCollector = flowRuleThroughputCollector;
+        setRefreshInterval(refreshIntervalMillis);
     }
 
+    public synchronized void setRefreshInterval(long refreshIntervalMillis) {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+        }
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        refreshTask = refresher.scheduleWithFixedDelay(() -> { refreshLoadSnapshot(); }, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void setHeadroomRatio(double headroomRatio) {
+        this.headroomRatio = headroomRatio;
+    }
+
+    public void setPlacementMode(UpfPlacementMode placementMode) {
+        this.placementMode = placementMode;
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    // Select the UPF instance with the least estimated utilization. No I/O is performed here: the estimate is the
+    // load of the latest snapshot, plus the average per-session load for each session assigned since the snapshot,
+    // relative to the capacity of the UPF instance.
     public Ip4Address selectUpf(Ip4Address upfVip) {
+        return selectUpf(upfVip, 1);
+    }
+
+    // Select a UPF instance for a group of sessions, which counts as that many new sessions.
+    public Ip4Address selectUpf(Ip4Address upfVip, int sessions) {
+        LoadSnapshot snapshot = loadSnapshot;
+        UpfInstance selected = null;
+        for (UpfInstance upf : upfRegistry.instancesOf(upfVip).values()) {
+            if (selected == null || isLessUtilized(snapshot, upf, selected)) {
+                selected = upf;
+            }
+        }
+        return assign(snapshot, selected, sessions);
+    }
+
+    // Select a UPF instance for a new session according to the placement mode. With two choices, a burst of new
+    // sessions is spread over the UPF instances even before the next snapshot, instead of herding onto the
+    // least loaded one.
+    public Ip4Address selectUpf(Ip4Address upfVip, FSeid fseid) {
+        Collection<UpfInstance> upfs = upfRegistry.instancesOf(upfVip).values();
+        UpfPlacementMode mode = placementMode;
+        if (mode == UpfPlacementMode.UPF_PLACEMENT_MODE_LEAST_LOADED || upfs.size() <= 2) {
+            return selectUpf(upfVip, 1);
+        }
+        LoadSnapshot snapshot = loadSnapshot;
+        UpfInstance first = null;
+        UpfInstance second = null;
+        if (mode == UpfPlacementMode.UPF_PLACEMENT_MODE_POWER_OF_TWO_CHOICES) {
+            int n = upfs.size();
+            int i = ThreadLocalRandom.current().nextInt(n);
+            int j = ThreadLocalRandom.current().nextInt(n - 1);
+            j = j >= i ? j + 1 : j;
+            int index = 0;
+            for (UpfInstance upf : upfs) {
+                if (index == i) {
+                    first = upf;
+                } else if (index == j) {
+                    second = upf;
+                }
+                index++;
+            }
+        } else {
+            // Weighted by capacity: an instance with twice the capacity ranks first for twice as many sessions.
+            long key = fseid.getSeid() * 0x9e3779b97f4a7c15L + fseid.getIpv4Int();
+            double firstScore = -1;
+            double secondScore = -1;
+            for (UpfInstance upf : upfs) {
+                double score = -upf.capacity() / Math.log(rendezvousScore(key, upf.ip()));
+                if (score > firstScore) {
+                    second = first;
+                    secondScore = firstScore;
+                    first = upf;
+                    firstScore = score;
+                } else if (score > secondScore) {
+                    second = upf;
+                    secondScore = score;
+                }
+            }
+        }
+        // Instances may be removed while iterating.
+        if (first == null || second == null) {
+            return selectUpf(upfVip, 1);
+        }
+        return assign(snapshot, isLessUtilized(snapshot, second, first) ? second : first, 1);
+    }
+
+    // Prefer the UPF with fewer new sessions per capacity on a tie, e.g. when all UPFs are idle.
+    private boolean isLessUtilized(LoadSnapshot snapshot, UpfInstance upf, UpfInstance other) {
+        double estimate = estimateUtilization(snapshot, upf);
+        double otherEstimate = estimateUtilization(snapshot, other);
+        return estimate < otherEstimate
+                || (estimate == otherEstimate && assigned(upf.ip()) / upf.capacity() < assigned(other.ip()) / other.capacity());
+    }
+
+    // Sessions assigned since the snapshot count with the load per session of the UPF instance. An idle UPF
+    // instance has none, so they count with the average of all sessions instead, or else a small prior, so that
+    // sessions don't all herd onto the idle instance until the next snapshot.
+    private double estimateUtilization(LoadSnapshot snapshot, UpfInstance upf) {
+        double load = snapshot.load(upf.ip());
+        double sessionLoad = load > 0 ? load / Math.max(snapshot.sessions(upf.ip()), 1) : snapshot.averageSessionLoad();
+        return (load + assigned(upf.ip()) * Math.max(sessionLoad, MIN_SESSION_LOAD_GBPS)) / upf.capacity();
+    }
+
+    private int assigned(Ip4Address dip) {
+        AtomicInteger assigned = assignedSinceRefresh.get(dip);
+        return assigned == null ? 0 : assigned.get();
+    }
+
+    private Ip4Address assign(LoadSnapshot snapshot, UpfInstance upf, int sessions) {
+        if (upf == null) {
+            return null;
+        }
+        assignedSinceRefresh.computeIfAbsent(upf.ip(), k -> new AtomicInteger()).addAndGet(sessions);
+        if (log.isDebugEnabled()) {
+            log.debug("Select {} (estimated utilization {})", upf.ip(), estimateUtilization(snapshot, upf));
+        }
+        return upf.ip();
+    }
+
+    // Highest random weight of the UPF instance for the key, uniform in (0, 1).
+    private static double rendezvousScore(long key, Ip4Address dip) {
+        long h = key ^ (dip.toInt() * 0xc2b2ae3d27d4eb4fL);
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        h = h ^ (h >>> 33);
+        return ((h >>> 11) + 0.5) / (1L << 53);
+    }
+
+    private void refreshLoadSnapshot() {
+        try {
+            HashMap<Ip4Address, Double> loads = criteria == UpfSelectorCriteria.UPF_SELECTOR_CRITERIA_SWITCH_THROUGHPUT
+                    ? collectSwitchThroughput() : queryPrometheusLoads();
+            if (loads == null) {
+                checkStale();
+                return;
+            }
+            HashMap<Ip4Address, Integer> sessions = new HashMap<Ip4Address, Integer>();
+            for (UpfInstance upf : upfRegistry.all()) {
+                sessions.put(upf.ip(), upf.sessionCount());
+            }
+            loadSnapshot = new LoadSnapshot(loads, sessions);
+            assignedSinceRefresh.clear();
+            if (stale) {
+                stale = false;
+                log.info("refreshLoadSnapshot: load snapshot is fresh again");
+            }
+        } catch (Exception e) {
+            log.info(e.toString());
+            checkStale();
+        }
+    }
+
+    // Sessions are still placed on the last snapshot when a refresh fails, so report when it gets too old.
+    private void checkStale() {
+        long age = System.currentTimeMillis() - loadSnapshot.takenMillis;
+        if (!stale && age > STALE_REFRESH_INTERVALS * refreshIntervalMillis) {
+            stale = true;
+            log.info("refreshLoadSnapshot: load snapshot is stale, last refreshed {} ms ago", age);
+        }
+    }
+
+    private HashMap<Ip4Address, Double> queryPrometheusLoads() {
+        JsonNode respBody = queryPrometheus(metricQueryExpr());
+        if (respBody == null) {
+            return null;
+        }
+        HashMap<Ip4Address, Double> loads = new HashMap<Ip4Address, Double>();
+        for (JsonNode pod : respBody.get("data").get("result")) {
+            Ip4Address ip = Ip4Address.valueOf(pod.get("metric").get("pod_ip").asText());
+            loads.put(ip, Double.valueOf(pod.get("value").get(1).asText()));
+        }
+        return loads;
+    }
+
+    // Throughput (Gbps) of each UPF instance, summed over the DNAT and N6 downlink routing rules of its sessions.
+    // It only depends on the switch counters, so it is available even when Prometheus is not.
+    private HashMap<Ip4Address, Double> collectSwitchThroughput() {
+        HashMap<Ip4Address, Double> loads = new HashMap<Ip4Address, Double>();
+        for (UpfInstance upf : upfRegistry.all()) {
+            loads.put(upf.ip(), flowRuleThroughputCollector.getUpfThroughput(upf.ip()) * 8 / 1000 / 1000 / 1000);
+        }
+        return loads;
+    }
+
+    private String metricQueryExpr() {
         switch (criteria) {
             case UPF_SELECTOR_CRITERIA_POD_CPU_USAGE:
-                return selectUpfWithLeastPodCpuUsage(upfVip);
+                // rate(container_cpu_usage_seconds_total{container=~'upf.*'}[20s]) * on(pod) group_left(pod_ip) kube_pod_info{pod=~"upf.*"}
+                return "rate%28container_cpu_usage_seconds_total%7Bcontainer%3D%7E%27upf.*%27%7D%5B20s%5D%29+*+on%28pod%29+group_left%28pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%22%7D";
             case UPF_SELECTOR_CRITERIA_NODE_CPU_USAGE:
-                return selectUpfWithLeastNodeCpuUsage(upfVip);
+                // label_replace(rate(node_cpu_seconds_total{mode="softirq"}[20s]), "host_ip", "$1", "instance", "(.*):.*") * on(host_ip) group_left(namespace, pod, pod_ip) kube_pod_info{pod=~"upf.*"}
+                return "label_replace%28rate%28node_cpu_seconds_total%7Bmode%3D%22softirq%22%7D%5B20s%5D%29%2C+%22host_ip%22%2C+%22%241%22%2C+%22instance%22%2C+%22%28.*%29%3A.*%22%29+*+on%28host_ip%29+group_left%28namespace%2C+pod%2C+pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%22%7D";
             case UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT:
-                return selectUpfWithLeastReceivingThroughput(upfVip);
+                // (irate(container_network_receive_bytes_total{pod=~"upf.*|ulcl.*|psa.*", interface="eth0"}[60s]) * on (pod) group_left(pod_ip) kube_pod_info{pod=~"upf.*|ulcl.*|psa.*"}) * 8 / 1000 / 1000 / 1000
+                return "%28irate%28container_network_receive_bytes_total%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%2C+interface%3D%22eth0%22%7D%5B60s%5D%29+*+on+%28pod%29+group_left%28pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%7D%29+*+8+%2F+1000+%2F+1000+%2F+1000";
             default:
                 log.error("Unsupported criteria: {}", criteria);
+                return null;
         }
-        return null;
     }
 
-    public HashMap<UpfInstance, Collection<PfcpSession>> allocateUpfsForSessions(Ip4Address upfVip, Collection<PfcpSession> sessions, UpfInstance originalUpf, double threshold) {
-        PriorityQueue<UpfInstance> pq = new PriorityQueue<UpfInstance>();
-        HashMap<UpfInstance, Collection<PfcpSession>> allocations = new HashMap<UpfInstance, Collection<PfcpSession>>();
-
+    // Best-fit decreasing: sessions are placed from the largest, each on the candidate UPF instance which has the
+    // least room left that still fits it. The room of a UPF instance is its capacity times the utilization
+    // threshold, less the headroom reserved for its own growth, minus its throughput. Sessions which fit nowhere
+    // are reported as unplaced.
+    public UpfAllocation allocateUpfsForSessions(Ip4Address upfVip, Collection<PfcpSession> sessions, UpfInstance originalUpf, double utilizationThreshold) {
+        UpfAllocation allocation = null;
         try {
-            // (irate(container_network_receive_bytes_total{pod=~"upf.*|ulcl.*|psa.*", interface="eth0"}[60s]) * on (pod) group_left(pod_ip) kube_pod_info{pod=~"upf.*|ulcl.*|psa.*"}) * 8 / 1000 / 1000 / 1000
-            String expr = "%28irate%28container_network_receive_bytes_total%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%2C+interface%3D%22eth0%22%7D%5B60s%5D%29+*+on+%28pod%29+group_left%28pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%7D%29+*+8+%2F+1000+%2F+1000+%2F+1000";
-            JsonNode respBody = queryPrometheus(expr);
-            HashMap<Ip4Address, UpfInstance> upfInstances = upfIpToUpfInstance.get(upfVip);
-            log.info("----------------------------------------------------------------");
-            for (JsonNode pod : respBody.get("data").get("result")) {
-                String name = pod.get("metric").get("pod").asText();
-                Ip4Address ip = Ip4Address.valueOf(pod.get("metric").get("pod_ip").asText());
-                double throughput = Double.valueOf(pod.get("value").get(1).asText()).doubleValue();
-                boolean available = !ip.equals(originalUpf.ip()) && upfInstances.containsKey(ip);
-                if (available) {
-                    UpfInstance upf = upfInstances.get(ip);
-                    upf.updateThroughput(throughput);
-                    pq.offer(upf);
-                }
-                log.info("{} ({}), {}{}", name, ip, throughput, available ? "" : " (X)");
-            }
-            log.info("----------------------------------------------------------------");
-
-            UpfInstance upf = null;
-            double quota = 0;
-            Collection<PfcpSession> subsessions = null;
-            for (PfcpSession session : sessions) {
-                if (session.throughput() >= quota) {
-                    if (pq.isEmpty()) {
-                        log.info("There aren't enough UPFs to take over all sessions, maybe system should scale-out");
-                        break;
-                    }
-                    upf = pq.poll();
-                    quota = threshold - upf.throughput();
-                    subsessions = new ArrayList<PfcpSession>();
-                    allocations.put(upf, subsessions);
-                }
-                quota -= session.throughput();
-                subsessions.add(session);
+            HashMap<Ip4Address, Double> loads = queryReceivingThroughput();
+            if (loads == null) {
+                log.info("Receiving throughput is not available, use the throughput counted by the switch");
+                loads = collectSwitchThroughput();
             }
+            allocation = allocate(upfRegistry.instancesOf(upfVip).values(), loads, sessions, originalUpf, utilizationThreshold);
         } catch (Exception e) {
             log.info(e.toString());
+            allocation = new UpfAllocation();
+            allocation.unplaced.addAll(sessions);
         }
-        return allocations;
+        if (!allocation.unplaced.isEmpty()) {
+            log.info("{} sessions ({} Gbps) can't be placed without overloading other UPFs, maybe system should scale-out",
+                    allocation.unplaced.size(), allocation.unplacedThroughput());
+        }
+        return allocation;
+    }
+
+    // The packing of allocateUpfsForSessions() on the given loads (Gbps) of the UPF instances.
+    UpfAllocation allocate(Collection<UpfInstance> upfs, Map<Ip4Address, Double> loads, Collection<PfcpSession> sessions,
+            UpfInstance originalUpf, double utilizationThreshold) {
+        UpfAllocation allocation = new UpfAllocation();
+        ArrayList<PfcpSession> sortedSessions = new ArrayList<PfcpSession>(sessions);
+        sortedSessions.sort(Collections.reverseOrder());
+
+        TreeSet<UpfBin> bins = new TreeSet<UpfBin>();
+        double utilizationLimit = utilizationThreshold * (1 - headroomRatio);
+        log.info("----------------------------------------------------------------");
+        // UPF instances without a known load are not candidates.
+        for (UpfInstance upf : upfs) {
+            Double throughput = loads.get(upf.ip());
+            boolean available = upf != originalUpf && throughput != null;
+            if (available) {
+                upf.updateThroughput(throughput);
+                double room = upf.capacity() * utilizationLimit - throughput;
+                if (room > 0) {
+                    bins.add(new UpfBin(upf, room));
+                }
+            }
+            log.info("{} ({}), {}{}", upf.name(), upf.ip(), throughput, available ? "" : " (X)");
+        }
+        log.info("----------------------------------------------------------------");
+
+        for (PfcpSession session : sortedSessions) {
+            UpfBin bin = bins.ceiling(new UpfBin(null, session.throughput()));
+            if (bin == null) {
+                allocation.unplaced.add(session);
+                continue;
+            }
+            bins.remove(bin);
+            bin.room -= session.throughput();
+            bins.add(bin);
+            allocation.assignments.computeIfAbsent(bin.upf, k -> new ArrayList<PfcpSession>()).add(session);
+        }
+        return allocation;
+    }
+
+    // Receiving throughput (Gbps) of all UPF instances, or null if Prometheus is not available.
+    private HashMap<Ip4Address, Double> queryReceivingThroughput() {
+        // (irate(container_network_receive_bytes_total{pod=~"upf.*|ulcl.*|psa.*", interface="eth0"}[60s]) * on (pod) group_left(pod_ip) kube_pod_info{pod=~"upf.*|ulcl.*|psa.*"}) * 8 / 1000 / 1000 / 1000
+        String expr = "%28irate%28container_network_receive_bytes_total%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%2C+interface%3D%22eth0%22%7D%5B60s%5D%29+*+on+%28pod%29+group_left%28pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%7D%29+*+8+%2F+1000+%2F+1000+%2F+1000";
+        JsonNode respBody = queryPrometheus(expr);
+        if (respBody == null || respBody.get("data") == null) {
+            return null;
+        }
+        HashMap<Ip4Address, Double> loads = new HashMap<Ip4Address, Double>();
+        for (JsonNode pod : respBody.get("data").get("result")) {
+            Ip4Address ip = Ip4Address.valueOf(pod.get("metric").get("pod_ip").asText());
+            loads.put(ip, Double.valueOf(pod.get("value").get(1).asText()));
+        }
+        return loads;
     }
 
     public double getUpfThroughput(String upfName) {
@@ -120,66 +390,85 @@ public class UpfSelector {
         return throughput;
     }
 
-    private Ip4Address selectUpfWithLeastPodCpuUsage(Ip4Address upfVip) {
-        // rate(container_cpu_usage_seconds_total{container=~'upf.*'}[20s]) * on(pod) group_left(pod_ip) kube_pod_info{pod=~"upf.*"}
-        String expr = "rate%28container_cpu_usage_seconds_total%7Bcontainer%3D%7E%27upf.*%27%7D%5B20s%5D%29+*+on%28pod%29+group_left%28pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%22%7D";
-        return selectUpfWithLeastResourceUsage(upfVip, expr);
+    private JsonNode queryPrometheus(String queryExpr) {
+        JsonNode respBody = null;
+        try {
+            URI uri = URI.create("http://localhost:60909/api/v1/query?query=" + queryExpr);
+            HttpRequest request = HttpRequest.newBuilder(uri).header("accept", "application/json")
+                    .timeout(PROMETHEUS_REQUEST_TIMEOUT).build();
+            HttpResponse<String> response = httpClient.send(request, BodyHandlers.ofString());
+            respBody = jsonReader.readTree(response.body());
+        } catch (Exception e) {
+            log.info(e.toString());
+        }
+        return respBody;
     }
 
-    private Ip4Address selectUpfWithLeastNodeCpuUsage(Ip4Address upfVip) {
-        // label_replace(rate(node_cpu_seconds_total{mode="softirq"}[20s]), "host_ip", "$1", "instance", "(.*):.*") * on(host_ip) group_left(namespace, pod, pod_ip) kube_pod_info{pod=~"upf.*"}
-        String expr = "label_replace%28rate%28node_cpu_seconds_total%7Bmode%3D%22softirq%22%7D%5B20s%5D%29%2C+%22host_ip%22%2C+%22%241%22%2C+%22instance%22%2C+%22%28.*%29%3A.*%22%29+*+on%28host_ip%29+group_left%28namespace%2C+pod%2C+pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%22%7D";
-        return selectUpfWithLeastResourceUsage(upfVip, expr);
+    public static class UpfAllocation {
+        public final HashMap<UpfInstance, Collection<PfcpSession>> assignments = new HashMap<UpfInstance, Collection<PfcpSession>>();
+        public final ArrayList<PfcpSession> unplaced = new ArrayList<PfcpSession>();
+
+        public double unplacedThroughput() {
+            double throughput = 0;
+            for (PfcpSession session : unplaced) {
+                throughput += session.throughput();
+            }
+            return throughput;
+        }
     }
 
-    private Ip4Address selectUpfWithLeastReceivingThroughput(Ip4Address upfVip) {
-        // (irate(container_network_receive_bytes_total{pod=~"upf.*|ulcl.*|psa.*", interface="eth0"}[60s]) * on (pod) group_left(pod_ip) kube_pod_info{pod=~"upf.*|ulcl.*|psa.*"}) * 8 / 1000 / 1000 / 1000
-        String expr = "%28irate%28container_network_receive_bytes_total%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%2C+interface%3D%22eth0%22%7D%5B60s%5D%29+*+on+%28pod%29+group_left%28pod_ip%29+kube_pod_info%7Bpod%3D%7E%22upf.*%7Culcl.*%7Cpsa.*%22%7D%29+*+8+%2F+1000+%2F+1000+%2F+1000";
-        return selectUpfWithLeastResourceUsage(upfVip, expr);
+    // Room left on a UPF instance. Bins are ordered by room, then by the address of the UPF instance.
+    private static class UpfBin implements Comparable<UpfBin> {
+        public UpfBin(UpfInstance upf, double room) {
+            this.upf = upf;
+            this.room = room;
+        }
+
+        @Override
+        public int compareTo(UpfBin other) {
+            int result = Double.compare(room, other.room);
+            if (result != 0 || upf == other.upf) {
+                return result;
+            }
+            if (upf == null || other.upf == null) {
+                return upf == null ? -1 : 1;
+            }
+            return Integer.compare(upf.ip().toInt(), other.upf.ip().toInt());
+        }
+
+        public UpfInstance upf;
+        public double room;
     }
 
-    private Ip4Address selectUpfWithLeastResourceUsage(Ip4Address upfVip, String queryExpr) {
-        BigDecimal minUsage = null;
-        Ip4Address minUsageUpfDip = null;
-        try {
-            JsonNode respBody = queryPrometheus(queryExpr);
-            HashMap<Ip4Address, UpfInstance> upfInstances = upfIpToUpfInstance.get(upfVip);
-            log.info("----------------------------------------------------------------");
-            for (JsonNode pod : respBody.get("data").get("result")) {
-                String name = pod.get("metric").get("pod").asText();
-                Ip4Address ip = Ip4Address.valueOf(pod.get("metric").get("pod_ip").asText());
-                BigDecimal metric = new BigDecimal(pod.get("value").get(1).asText());
-                boolean available = upfInstances.containsKey(ip);
-
-                if (available && (minUsage == null || metric.compareTo(minUsage) < 0)) {
-                    minUsage = metric;
-                    minUsageUpfDip = ip;
-                }
-                log.info("pod: {} ({}), metric: {}{}", name, ip, metric, available ? "" : " (X)");
+    private static class LoadSnapshot {
+        public LoadSnapshot(Map<Ip4Address, Double> loads, Map<Ip4Address, Integer> sessions) {
+            this.loads = loads;
+            this.sessions = sessions;
+            this.takenMillis = System.currentTimeMillis();
+            double totalLoad = 0;
+            long totalSessions = 0;
+            for (Map.Entry<Ip4Address, Integer> entry : sessions.entrySet()) {
+                totalLoad += load(entry.getKey());
+                totalSessions += entry.getValue();
             }
-            log.info("----------------------------------------------------------------");
-        } catch (Exception e) {
-            log.info(e.toString());
+            this.averageSessionLoad = totalSessions == 0 ? 0 : totalLoad / totalSessions;
         }
-        // If metrics for UPFs are not available, return the first one.
-        if (minUsageUpfDip == null) {
-            minUsageUpfDip = upfIpToUpfInstance.get(upfVip).values().iterator().next().ip();
+
+        public double load(Ip4Address dip) {
+            return loads.getOrDefault(dip, 0.0);
         }
-        log.info("Select {}", minUsageUpfDip);
-        return minUsageUpfDip;
-    }
 
-    private JsonNode queryPrometheus(String queryExpr) {
-        JsonNode respBody = null;
-        try {
-            URI uri = URI.create("http://localhost:60909/api/v1/query?query=" + queryExpr);
-            HttpClient client = HttpClient.newHttpClient();
-            HttpRequest request = HttpRequest.newBuilder(uri).header("accept", "application/json").build();
-            HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
-            respBody = new ObjectMapper().readTree(response.body());
-        } catch (Exception e) {
-            log.info(e.toString());
+        public int sessions(Ip4Address dip) {
+            return sessions.getOrDefault(dip, 0);
         }
-        return respBody;
+
+        public double averageSessionLoad() {
+            return averageSessionLoad;
+        }
+
+        private final Map<Ip4Address, Double> loads;
+        private final Map<Ip4Address, Integer> sessions;
+        private final long takenMillis;
+        private final double averageSessionLoad;
     }
 }
@@ -0,0 +1,85 @@
+package nctu.winlab.ha5gup;
+
+import java.util.List;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.flow.FlowRule;
+
+// A group of PFCP sessions whose DNAT rules point to the same entry of upf_slot_table, which in turn
+// points to a UPF instance. Moving the group to another UPF instance only rewrites that entry.
+// The sessions of a UPF instance are those of its slots, so only the slot indexes them.
+public class UpfSlot {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int id;
+    private Ip4Address upfDip;
+    private FlowRule slotRule;
+    private boolean adopted; // Moved from the UPF instance which the slot is created for.
+    private boolean retired;
+    private final PfcpSessionTable pfcpSessions = new PfcpSessionTable(INITIAL_CAPACITY);
+
+    public UpfSlot(int id, Ip4Address upfDip, FlowRule slotRule) {
+        this.id = id;
+        this.upfDip = upfDip;
+        this.slotRule = slotRule;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public synchronized Ip4Address upfDip() {
+        return upfDip;
+    }
+
+    public synchronized FlowRule slotRule() {
+        return slotRule;
+    }
+
+    public synchronized void moveTo(Ip4Address upfDip, FlowRule slotRule) {
+        this.upfDip = upfDip;
+        this.slotRule = slotRule;
+        this.adopted = true;
+    }
+
+    public synchronized boolean adopted() {
+        return adopted;
+    }
+
+    // Returns true only once, for the caller which should remove the slot rule and release the slot id.
+    // Sessions are never added to an adopted slot, so an empty adopted slot stays empty.
+    public synchronized boolean retireIfEmpty() {
+        if (retired || !adopted || pfcpSessions.size() != 0) {
+            return false;
+        }
+        retired = true;
+        return true;
+    }
+
+    public synchronized boolean retired() {
+        return retired;
+    }
+
+    // A snapshot of the sessions of the slot.
+    public List<PfcpSession> pfcpSessions() {
+        return pfcpSessions.sessions();
+    }
+
+    public int size() {
+        return pfcpSessions.size();
+    }
+
+    public void addPfcpSession(PfcpSession session) {
+        FSeid fseid = session.fseid();
+        pfcpSessions.put(fseid.getSeid(), fseid.getIpv4Int(), fseid.hashCode(), session);
+    }
+
+    public void removePfcpSession(FSeid fseid) {
+        pfcpSessions.remove(fseid.getSeid(), fseid.getIpv4Int(), fseid.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("slot %d (%s)", id, upfDip());
+    }
+}
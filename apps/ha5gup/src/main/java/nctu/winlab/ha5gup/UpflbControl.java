@@ -2,13 +2,26 @@ package nctu.winlab.ha5gup;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Striped;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import org.slf4j.Logger;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+
+import nctu.winlab.ha5gup.SessionSubsetSelector.SessionSubsetStrategy;
+import nctu.winlab.ha5gup.UpfSelector.UpfAllocation;
+import nctu.winlab.ha5gup.UpfSelector.UpfPlacementMode;
+import nctu.winlab.ha5gup.UpfSelector.UpfSelectorCriteria;
 
 import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
@@ -53,17 +66,27 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiConsumer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 import static nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.InitializeRequest.CoreNetwork.CORE_NETWORK_FREE5GC_VALUE;
 import static nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.InitializeRequest.CoreNetwork.CORE_NETWORK_OPEN5GS_VALUE;
-import static nctu.winlab.ha5gup.UpfSelector.UpfSelectorCriteria.UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT;
 import static org.onlab.util.Tools.get;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -71,6 +94,27 @@ import static org.slf4j.LoggerFactory.getLogger;
            service = {SomeInterface.class},
            property = {
                "someProperty=Some Default String Value",
+               "upfMetricsRefreshIntervalMs:Integer=1000",
+               "upfSelectorCriteria=UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT",
+               "flowStatsEwmaWindowMs:Integer=5000",
+               "teidBlockBits:Integer=4",
+               "ueIpBlockPrefixLength:Integer=28",
+               "maxConcurrentMigrations:Integer=32",
+               "maxConcurrentMigrationsPerUpf:Integer=8",
+               "overloadSessionSubsetStrategy=SESSION_SUBSET_STRATEGY_MIN_MIGRATION_COST",
+               "migrationHeadroomPercent:Integer=10",
+               "upfPlacementMode=UPF_PLACEMENT_MODE_LEAST_LOADED",
+               "defaultUpfCapacityGbps:Double=2.5",
+               "rebalanceCooldownMs:Integer=30000",
+               "rebalanceLowWatermarkPercent:Integer=80",
+               "sessionMinResidencyMs:Integer=60000",
+               "migrationBudgetSessions:Integer=1000",
+               "migrationBudgetWindowMs:Integer=10000",
+               "alertCoalesceWindowMs:Integer=1000",
+               "alertStaleMs:Integer=300000",
+               "grpcServerThreads:Integer=4",
+               "sessionRequestThreads:Integer=8",
+               "maxSessionRequestsInFlight:Integer=1024",
            })
 public class UpflbControl implements SomeInterface {
     protected static final Logger log = getLogger(UpflbControl.class);
@@ -78,6 +122,69 @@ public class UpflbControl implements SomeInterface {
     /** Some configurable property. */
     private String someProperty;
 
+    /** Interval of refreshing the UPF load snapshot used by UpfSelector. */
+    private int upfMetricsRefreshIntervalMs = 1000;
+
+    /** Metric used by UpfSelector to compare the load of UPF instances. */
+    private UpfSelectorCriteria upfSelectorCriteria = UpfSelectorCriteria.UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT;
+
+    /** EWMA window for smoothing the throughput of flow rules, 0 to disable smoothing. */
+    private int flowStatsEwmaWindowMs = 5000;
+
+    /** Size (in bits) of the TEID blocks matched by a single DNAT rule, 0 to install a rule per F-TEID. */
+    private int teidBlockBits = 4;
+
+    /** Prefix length of the UE IP blocks routed by a single N6 rule, 0 to route each UE by a /32 rule. */
+    private int ueIpBlockPrefixLength = 28;
+
+    /** Maximum number of session migrations in flight. */
+    private int maxConcurrentMigrations = 32;
+
+    /** Maximum number of session migrations in flight towards the same UPF instance. */
+    private int maxConcurrentMigrationsPerUpf = 8;
+
+    /** How sessions are chosen to relieve an overloaded UPF instance. */
+    private SessionSubsetStrategy overloadSessionSubsetStrategy = SessionSubsetStrategy.SESSION_SUBSET_STRATEGY_MIN_MIGRATION_COST;
+
+    /** Percentage of the overload threshold kept free on the UPF instances which migrated sessions are packed into. */
+    private int migrationHeadroomPercent = 10;
+
+    /** How UpfSelector places new sessions which don't join a TEID or UE IP block. */
+    private UpfPlacementMode upfPlacementMode = UpfPlacementMode.UPF_PLACEMENT_MODE_LEAST_LOADED;
+
+    /** Capacity (Gbps) of UPF instances added without one, which is also the capacity overload alerts refer to. */
+    private double defaultUpfCapacityGbps = 2.5;
+
+    /** Time after a rebalance during which overload of its source and target UPF instances is ignored. */
+    private int rebalanceCooldownMs = 30000;
+
+    /** Percentage of the overload threshold an overloaded UPF instance is rebalanced down to. */
+    private int rebalanceLowWatermarkPercent = 80;
+
+    /** Time a session stays on a UPF instance before it can be migrated again. */
+    private int sessionMinResidencyMs = 60000;
+
+    /** Maximum number of sessions migrated by rebalances per budget window. */
+    private int migrationBudgetSessions = 1000;
+
+    /** Length of the migration budget window. */
+    private int migrationBudgetWindowMs = 10000;
+
+    /** Window in which overload alerts of the same UPF instance are merged into one. */
+    private int alertCoalesceWindowMs = 1000;
+
+    /** Time after which a pending overload alert which is not repeated is dropped. */
+    private int alertStaleMs = 300000;
+
+    /** Threads of the gRPC server, which decode requests and hand them over to the controller. */
+    private int grpcServerThreads = 4;
+
+    /** Controller threads handling PFCP session requests. */
+    private int sessionRequestThreads = 8;
+
+    /** Maximum number of PFCP session requests in flight, above which requests are rejected with RESOURCE_EXHAUSTED. */
+    private int maxSessionRequestsInFlight = 1024;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected ComponentConfigService cfgService;
 
@@ -104,24 +211,91 @@ public class UpflbControl implements SomeInterface {
 
     private ApplicationId appId;
     private Server grpcServer;
+    private ThreadPoolExecutor grpcExecutor;
+    private EventLoopGroup grpcBossGroup;
+    private EventLoopGroup grpcWorkerGroup;
+    private RequestQueue sessionRequestQueue;
+    private RequestQueue upfRequestQueue;
     private HttpServer httpServer;
-    private UpfSelector upfSelector;
+    private volatile UpfSelector upfSelector;
     private FlowRuleThroughputCollector flowRuleThroughputCollector;
+    private volatile TeidBlockAllocator teidBlockAllocator;
+    private volatile UeIpBlockAllocator ueIpBlockAllocator;
+    private MigrationEngine migrationEngine;
+    private final SessionSubsetSelector sessionSubsetSelector = new SessionSubsetSelector(overloadSessionSubsetStrategy);
+    private final RebalanceController rebalanceController = new RebalanceController(rebalanceCooldownMs, sessionMinResidencyMs,
+            rebalanceLowWatermarkPercent / 100.0, migrationBudgetSessions, migrationBudgetWindowMs);
+    private final AlertQueue alertQueue = new AlertQueue(this::overloadAlertHandler, alertCoalesceWindowMs, alertStaleMs, ALERT_QUEUE_CAPACITY);
 
     private final ArpProcessor arpProcessor = new ArpProcessor();
-    private final K8sManager k8sManager = new K8sManager();
-    private final HashMap<Ip4Address, UpfService> upfServices = new HashMap<Ip4Address, UpfService>();
-    private final HashMap<Ip4Address, HashMap<Ip4Address, UpfInstance>> upfIpToUpfInstance = new HashMap<Ip4Address, HashMap<Ip4Address, UpfInstance>>();
-    private final HashMap<FSeid, PfcpSession> fseidToPfcpSession = new HashMap<FSeid, PfcpSession>();
+    private final K8sManager k8sManager;
+    private final ConcurrentHashMap<Ip4Address, UpfService> upfServices = new ConcurrentHashMap<Ip4Address, UpfService>();
+    private final UpfRegistry upfRegistry = new UpfRegistry();
+    // UPF instances removed from their UPF service whose slots are still being moved, by DIP. Their sessions stay
+    // on them until then, so session operations still resolve them here.
+    private final ConcurrentHashMap<Ip4Address, UpfInstance> drainingUpfs = new ConcurrentHashMap<Ip4Address, UpfInstance>();
+    private final PfcpSessionStore pfcpSessionStore = new PfcpSessionStore();
+
+    // Independent UPF services and PFCP sessions are handled concurrently:
+    // - Session operations hold the read lock of their UPF service, so UPF instances of the service can't be
+    //   added or removed under them, and the striped lock of each session they touch.
+    // - Adding or removing a UPF instance holds the write lock of its UPF service only while the membership changes.
+    // - Rebalancing of a UPF service is serialized by its rebalance lock, and each migrated session is updated
+    //   under its striped lock. Thus a slow rebalance never blocks session setup.
+    // - Session locks are never held while waiting for routes or flow rules.
+    // Locks are always acquired in the order: rebalance lock, UPF service lock, session locks.
+    private final ConcurrentHashMap<Ip4Address, ReentrantReadWriteLock> upfServiceLocks = new ConcurrentHashMap<Ip4Address, ReentrantReadWriteLock>();
+    private final ConcurrentHashMap<Ip4Address, ReentrantLock> rebalanceLocks = new ConcurrentHashMap<Ip4Address, ReentrantLock>();
+    private final Striped<Lock> sessionLocks = Striped.lock(256);
     private final HashMap<DeviceId, P4Manager> p4Managers = new HashMap<DeviceId, P4Manager>();
     private static final String APP_NAME = "nctu.winlab.ha5gup";
+    // Flow stats are only as fresh as the flow stats polling of ONOS, so this just keeps the delay after a poll small.
+    private static final long FLOW_STATS_COLLECT_INTERVAL_MILLIS = 1000;
+    // Sessions of a UPF instance are spread over its slots, which are the units of moving sessions as a group.
+    private static final int UPF_SLOTS_PER_INSTANCE = 4;
+    // More UPF instances than this can't be waiting for a rebalance at the same time.
+    private static final int ALERT_QUEUE_CAPACITY = 1024;
+    private static final int GRPC_PORT = 61337;
+    // UPF instances are added and removed by few, long requests (pod commands, migrations), which get their own
+    // threads, so they never hold up session requests.
+    private static final int UPF_REQUEST_THREADS = 4;
+    private static final int MAX_UPF_REQUESTS_IN_FLIGHT = 64;
+
+    public UpflbControl() {
+        k8sManager = new K8sManager();
+    }
+
+    // A controller without the ONOS services and the cluster, e.g. in tests, which is handed the collaborators
+    // activate() would create.
+    UpflbControl(ApplicationId appId, FlowRuleService flowRuleService, K8sManager k8sManager, P4Manager p4Manager,
+            FlowRuleThroughputCollector flowRuleThroughputCollector, MigrationEngine migrationEngine,
+            UpfSelectorCriteria upfSelectorCriteria) {
+        this.appId = appId;
+        this.flowRuleService = flowRuleService;
+        this.k8sManager = k8sManager;
+        this.flowRuleThroughputCollector = flowRuleThroughputCollector;
+        this.migrationEngine = migrationEngine;
+        this.upfSelectorCriteria = upfSelectorCriteria;
+        p4Managers.put(p4Manager.getDevice().id(), p4Manager);
+    }
+
+    PfcpSessionStore pfcpSessionStore() {
+        return pfcpSessionStore;
+    }
+
+    UpfSelector upfSelector() {
+        return upfSelector;
+    }
 
     @Activate
     protected void activate() {
         try {
             cfgService.registerProperties(getClass());
             appId = coreService.registerApplication(APP_NAME);
-            flowRuleThroughputCollector = new FlowRuleThroughputCollector(appId, flowRuleService);
+            flowRuleThroughputCollector = new FlowRuleThroughputCollector(appId, flowRuleService, FLOW_STATS_COLLECT_INTERVAL_MILLIS, flowStatsEwmaWindowMs);
+            migrationEngine = new MigrationEngine(maxConcurrentMigrations, maxConcurrentMigrationsPerUpf);
+            sessionRequestQueue = new RequestQueue("session requests", sessionRequestThreads, maxSessionRequestsInFlight);
+            upfRequestQueue = new RequestQueue("UPF requests", UPF_REQUEST_THREADS, MAX_UPF_REQUESTS_IN_FLIGHT);
 
             // TODO: List of used P4 switches should be configurable.
             Map<DeviceId, MacAddress> devices = new HashMap<DeviceId, MacAddress>();
@@ -149,15 +323,37 @@ public class UpflbControl implements SomeInterface {
     protected void deactivate() {
         try {
             httpServer.stop(0);
+            alertQueue.shutdown();
             grpcServer.shutdownNow();
             grpcServer.awaitTermination();
+            grpcExecutor.shutdownNow();
+            if (grpcBossGroup != null) {
+                grpcBossGroup.shutdownGracefully();
+                grpcWorkerGroup.shutdownGracefully();
+            }
             log.info("gRPC server is terminated");
+            sessionRequestQueue.shutdown();
+            upfRequestQueue.shutdown();
 
             flowRuleThroughputCollector.shutdownCollector();
+            if (teidBlockAllocator != null) {
+                log.info("TeidBlockAllocator: {}", teidBlockAllocator);
+            }
+            if (ueIpBlockAllocator != null) {
+                log.info("UeIpBlockAllocator: {}", ueIpBlockAllocator);
+            }
+            if (upfSelector != null) {
+                upfSelector.shutdown();
+            }
+            migrationEngine.shutdown();
+            log.info("RebalanceController: {}", rebalanceController);
+            log.info("PfcpSessionStore: {}", pfcpSessionStore);
             for (P4Manager manager : p4Managers.values()) {
+                manager.shutdown();
                 manager.removeFlowRuleListener();
             }
             flowRuleThroughputCollector.removeFlowRuleListener();
+            k8sManager.shutdown();
 
             cfgService.unregisterProperties(getClass(), false);
             flowRuleService.removeFlowRulesById(appId);
@@ -173,6 +369,132 @@ public class UpflbControl implements SomeInterface {
         Dictionary<?, ?> properties = context != null ? context.getProperties() : new Properties();
         if (context != null) {
             someProperty = get(properties, "someProperty");
+            String refreshInterval = get(properties, "upfMetricsRefreshIntervalMs");
+            if (refreshInterval != null && Integer.parseInt(refreshInterval.trim()) > 0) {
+                upfMetricsRefreshIntervalMs = Integer.parseInt(refreshInterval.trim());
+                if (upfSelector != null) {
+                    upfSelector.setRefreshInterval(upfMetricsRefreshIntervalMs);
+                }
+            }
+            String ewmaWindow = get(properties, "flowStatsEwmaWindowMs");
+            if (ewmaWindow != null && Integer.parseInt(ewmaWindow.trim()) >= 0) {
+                flowStatsEwmaWindowMs = Integer.parseInt(ewmaWindow.trim());
+                if (flowRuleThroughputCollector != null) {
+                    flowRuleThroughputCollector.setEwmaWindow(flowStatsEwmaWindowMs);
+                }
+            }
+            String blockBits = get(properties, "teidBlockBits");
+            if (blockBits != null && Integer.parseInt(blockBits.trim()) >= 0 && Integer.parseInt(blockBits.trim()) < 32) {
+                // Takes effect on the next initialization, unless TEID blocks are still in use.
+                teidBlockBits = Integer.parseInt(blockBits.trim());
+            }
+            String prefixLength = get(properties, "ueIpBlockPrefixLength");
+            if (prefixLength != null && Integer.parseInt(prefixLength.trim()) >= 0 && Integer.parseInt(prefixLength.trim()) < 32) {
+                // Takes effect on the next initialization, unless UE IP blocks are still in use.
+                ueIpBlockPrefixLength = Integer.parseInt(prefixLength.trim());
+            }
+            String maxMigrations = get(properties, "maxConcurrentMigrations");
+            if (maxMigrations != null && Integer.parseInt(maxMigrations.trim()) > 0) {
+                maxConcurrentMigrations = Integer.parseInt(maxMigrations.trim());
+            }
+            String maxMigrationsPerUpf = get(properties, "maxConcurrentMigrationsPerUpf");
+            if (maxMigrationsPerUpf != null && Integer.parseInt(maxMigrationsPerUpf.trim()) > 0) {
+                maxConcurrentMigrationsPerUpf = Integer.parseInt(maxMigrationsPerUpf.trim());
+            }
+            if (migrationEngine != null) {
+                migrationEngine.setLimits(maxConcurrentMigrations, maxConcurrentMigrationsPerUpf);
+            }
+            String headroom = get(properties, "migrationHeadroomPercent");
+            if (headroom != null && Integer.parseInt(headroom.trim()) >= 0 && Integer.parseInt(headroom.trim()) < 100) {
+                migrationHeadroomPercent = Integer.parseInt(headroom.trim());
+                if (upfSelector != null) {
+                    upfSelector.setHeadroomRatio(migrationHeadroomPercent / 100.0);
+                }
+            }
+            String defaultCapacity = get(properties, "defaultUpfCapacityGbps");
+            if (defaultCapacity != null && Double.parseDouble(defaultCapacity.trim()) > 0) {
+                // Applies to UPF instances added later.
+                defaultUpfCapacityGbps = Double.parseDouble(defaultCapacity.trim());
+            }
+            String cooldown = get(properties, "rebalanceCooldownMs");
+            if (cooldown != null && Integer.parseInt(cooldown.trim()) >= 0) {
+                rebalanceCooldownMs = Integer.parseInt(cooldown.trim());
+                rebalanceController.setCooldown(rebalanceCooldownMs);
+            }
+            String lowWatermark = get(properties, "rebalanceLowWatermarkPercent");
+            if (lowWatermark != null && Integer.parseInt(lowWatermark.trim()) > 0 && Integer.parseInt(lowWatermark.trim()) <= 100) {
+                rebalanceLowWatermarkPercent = Integer.parseInt(lowWatermark.trim());
+                rebalanceController.setLowWatermarkRatio(rebalanceLowWatermarkPercent / 100.0);
+            }
+            String minResidency = get(properties, "sessionMinResidencyMs");
+            if (minResidency != null && Integer.parseInt(minResidency.trim()) >= 0) {
+                sessionMinResidencyMs = Integer.parseInt(minResidency.trim());
+                rebalanceController.setMinResidency(sessionMinResidencyMs);
+            }
+            String budgetSessions = get(properties, "migrationBudgetSessions");
+            if (budgetSessions != null && Integer.parseInt(budgetSessions.trim()) > 0) {
+                migrationBudgetSessions = Integer.parseInt(budgetSessions.trim());
+            }
+            String budgetWindow = get(properties, "migrationBudgetWindowMs");
+            if (budgetWindow != null && Integer.parseInt(budgetWindow.trim()) > 0) {
+                migrationBudgetWindowMs = Integer.parseInt(budgetWindow.trim());
+            }
+            rebalanceController.setBudget(migrationBudgetSessions, migrationBudgetWindowMs);
+            String coalesceWindow = get(properties, "alertCoalesceWindowMs");
+            if (coalesceWindow != null && Integer.parseInt(coalesceWindow.trim()) >= 0) {
+                alertCoalesceWindowMs = Integer.parseInt(coalesceWindow.trim());
+                alertQueue.setCoalesceWindow(alertCoalesceWindowMs);
+            }
+            String staleAfter = get(properties, "alertStaleMs");
+            if (staleAfter != null && Integer.parseInt(staleAfter.trim()) > 0) {
+                alertStaleMs = Integer.parseInt(staleAfter.trim());
+                alertQueue.setStaleAfter(alertStaleMs);
+            }
+            String serverThreads = get(properties, "grpcServerThreads");
+            if (serverThreads != null && Integer.parseInt(serverThreads.trim()) > 0) {
+                // Takes effect when the gRPC server is started.
+                grpcServerThreads = Integer.parseInt(serverThreads.trim());
+            }
+            String requestThreads = get(properties, "sessionRequestThreads");
+            if (requestThreads != null && Integer.parseInt(requestThreads.trim()) > 0) {
+                sessionRequestThreads = Integer.parseInt(requestThreads.trim());
+            }
+            String maxRequests = get(properties, "maxSessionRequestsInFlight");
+            if (maxRequests != null && Integer.parseInt(maxRequests.trim()) > 0) {
+                maxSessionRequestsInFlight = Integer.parseInt(maxRequests.trim());
+            }
+            if (sessionRequestQueue != null) {
+                sessionRequestQueue.setLimits(sessionRequestThreads, maxSessionRequestsInFlight);
+            }
+            String placementMode = get(properties, "upfPlacementMode");
+            if (placementMode != null) {
+                try {
+                    upfPlacementMode = UpfPlacementMode.valueOf(placementMode.trim());
+                    if (upfSelector != null) {
+                        upfSelector.setPlacementMode(upfPlacementMode);
+                    }
+                } catch (IllegalArgumentException e) {
+                    log.info("Unknown UPF placement mode: {}", placementMode);
+                }
+            }
+            String subsetStrategy = get(properties, "overloadSessionSubsetStrategy");
+            if (subsetStrategy != null) {
+                try {
+                    overloadSessionSubsetStrategy = SessionSubsetStrategy.valueOf(subsetStrategy.trim());
+                    sessionSubsetSelector.setStrategy(overloadSessionSubsetStrategy);
+                } catch (IllegalArgumentException e) {
+                    log.info("Unknown session subset strategy: {}", subsetStrategy);
+                }
+            }
+            String criteria = get(properties, "upfSelectorCriteria");
+            if (criteria != null) {
+                try {
+                    // Takes effect on the next initialization.
+                    upfSelectorCriteria = UpfSelectorCriteria.valueOf(criteria.trim());
+                } catch (IllegalArgumentException e) {
+                    log.info("Unknown UPF selector criteria: {}", criteria);
+                }
+            }
         }
         log.info("Reconfigured");
     }
@@ -197,9 +519,22 @@ public class UpflbControl implements SomeInterface {
 
     private void startGrpcServer() {
         try {
-            grpcServer = ServerBuilder.forPort(61337).addService(new LoadBalancerAgentService(this)).build();
+            // Handlers only decode requests and hand them over to the request queues, so a few threads are enough.
+            // maxConcurrentCallsPerConnection only bounds the calls of each connection. Across connections, requests
+            // beyond the limit of the request queues are rejected with RESOURCE_EXHAUSTED.
+            grpcExecutor = new ThreadPoolExecutor(grpcServerThreads, grpcServerThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            NettyServerBuilder builder = NettyServerBuilder.forPort(GRPC_PORT)
+                    .executor(grpcExecutor)
+                    .maxConcurrentCallsPerConnection(maxSessionRequestsInFlight)
+                    .addService(new LoadBalancerAgentService(this, sessionRequestQueue, upfRequestQueue));
+            if (Epoll.isAvailable()) {
+                grpcBossGroup = new EpollEventLoopGroup(1);
+                grpcWorkerGroup = new EpollEventLoopGroup();
+                builder.bossEventLoopGroup(grpcBossGroup).workerEventLoopGroup(grpcWorkerGroup).channelType(EpollServerSocketChannel.class);
+            }
+            grpcServer = builder.build();
             grpcServer.start();
-            log.info("gRPC server is running...");
+            log.info("gRPC server is running on {} transport...", grpcBossGroup != null ? "epoll" : "NIO");
         } catch (Exception e) {
             log.info(e.toString());
         }
@@ -208,17 +543,25 @@ public class UpflbControl implements SomeInterface {
     // TODO: Add a listner for node add/delete
 
     protected synchronized void initializeHandler(int coreNetwork, List<nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpfService> services) {
+        if (upfSelector != null) {
+            upfSelector.shutdown();
+        }
         switch (coreNetwork) {
             case CORE_NETWORK_FREE5GC_VALUE:
-                upfSelector = new UpfSelector(UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT, upfIpToUpfInstance);
+                upfSelector = new UpfSelector(upfSelectorCriteria, upfRegistry, flowRuleThroughputCollector, upfMetricsRefreshIntervalMs);
                 break;
             case CORE_NETWORK_OPEN5GS_VALUE:
-                upfSelector = new UpfSelector(UPF_SELECTOR_CRITERIA_RECEIVING_THROUGHPUT, upfIpToUpfInstance);
+                upfSelector = new UpfSelector(upfSelectorCriteria, upfRegistry, flowRuleThroughputCollector, upfMetricsRefreshIntervalMs);
                 break;
             default:
                 log.info("Unsupported core network: {}", coreNetwork);
                 break;
         }
+        if (upfSelector != null) {
+            upfSelector.setHeadroomRatio(migrationHeadroomPercent / 100.0);
+            upfSelector.setPlacementMode(upfPlacementMode);
+        }
+        updateBlockAllocators();
 
         for (nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpfService service : services) {
             P4Manager manager = p4Managers.get(DeviceId.deviceId(service.getDevId()));
@@ -248,10 +591,40 @@ public class UpflbControl implements SomeInterface {
         }
     }
 
-    protected synchronized void addUpfHandler(String name, Ip4Address upfDip, Ip4Address upfVip, Ip4Address nodeIp) {
-        if (upfIpToUpfInstance.get(upfVip) == null) {
-            upfIpToUpfInstance.put(upfVip, new HashMap<Ip4Address, UpfInstance>());
+    // Applies the block sizes of the component properties. Sessions covered by a block rely on the size of their
+    // block, so an allocator is only replaced while none of its blocks is in use. Sessions are kept out meanwhile.
+    private void updateBlockAllocators() {
+        ArrayList<Lock> locks = new ArrayList<Lock>();
+        for (Ip4Address upfVip : new TreeSet<Ip4Address>(upfServices.keySet())) {
+            locks.add(upfServiceLock(upfVip).writeLock());
         }
+        lockAll(locks);
+        try {
+            TeidBlockAllocator teidBlocks = teidBlockAllocator;
+            int blockBits = teidBlocks == null ? 0 : teidBlocks.blockBits();
+            if (blockBits != teidBlockBits) {
+                if (teidBlocks != null && teidBlocks.blocks() > 0) {
+                    log.info("updateBlockAllocators: {} in use, teidBlockBits {} is kept", teidBlocks, blockBits);
+                } else {
+                    teidBlockAllocator = teidBlockBits > 0 ? new TeidBlockAllocator(teidBlockBits, flowRuleThroughputCollector) : null;
+                }
+            }
+            UeIpBlockAllocator ueIpBlocks = ueIpBlockAllocator;
+            int prefixLength = ueIpBlocks == null ? 0 : ueIpBlocks.prefixLength();
+            if (prefixLength != ueIpBlockPrefixLength) {
+                if (ueIpBlocks != null && ueIpBlocks.blocks() > 0) {
+                    log.info("updateBlockAllocators: {} in use, ueIpBlockPrefixLength {} is kept", ueIpBlocks, prefixLength);
+                } else {
+                    ueIpBlockAllocator = ueIpBlockPrefixLength > 0 ? new UeIpBlockAllocator(ueIpBlockPrefixLength, k8sManager, flowRuleThroughputCollector) : null;
+                }
+            }
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    // capacity is in Gbps, 0 if it is not given by the request.
+    protected void addUpfHandler(String name, Ip4Address upfDip, Ip4Address upfVip, Ip4Address nodeIp, double capacity) {
         // Host node = hostService.getHostsByIp(nodeIp).iterator().next();
         // Long nodePortNumber = node.location().port().toLong();
         // MacAddress nodeMac = node.mac();
@@ -263,188 +636,827 @@ public class UpflbControl implements SomeInterface {
         FlowRule snatRule = p4Manager.installUpfSnatTableRule(upfDip, upfVip);
         FlowRule routingRule = p4Manager.installIpRouteTableRule(upfDip, nodePortNumber, nodeMac);
         String hostIntfName = k8sManager.getHostIntfName(upfDip, nodeIp);
-        upfIpToUpfInstance.get(upfVip).put(upfDip, new VnfUpfInstance(name, upfDip, nodePortNumber, nodeMac, nodeIp, snatRule, routingRule, hostIntfName));
+        UpfInstance upf = new VnfUpfInstance(name, upfDip, nodePortNumber, nodeMac, nodeIp, snatRule, routingRule, hostIntfName);
+        if (capacity <= 0) {
+            capacity = k8sManager.getUpfCapacity(name);
+        }
+        upf.setCapacity(capacity > 0 ? capacity : defaultUpfCapacityGbps);
+        log.info("addUpfHandler: capacity of {} is {} Gbps", name, upf.capacity());
+        ArrayList<FlowRule> slotRules = new ArrayList<FlowRule>();
+        for (int i = 0; i < UPF_SLOTS_PER_INSTANCE; i++) {
+            int slotId = p4Manager.allocateUpfSlot();
+            if (slotId < 0) {
+                log.info("addUpfHandler: no UPF slot left for {}", name);
+                break;
+            }
+            FlowRule slotRule = p4Manager.buildUpfSlotTableRule(slotId, upfDip);
+            upf.addSlot(new UpfSlot(slotId, upfDip, slotRule));
+            slotRules.add(slotRule);
+        }
+        p4Manager.applyFlowRules(slotRules);
+
+        Lock membershipLock = upfServiceLock(upfVip).writeLock();
+        membershipLock.lock();
+        try {
+            upfRegistry.add(upfVip, upf);
+        } finally {
+            membershipLock.unlock();
+        }
     }
 
     // For simplicity, both ADD and UPDATE events will invoke this handler.
-    protected synchronized void updatePfcpSessionHandler(FSeid fseid, ArrayList<FTeid> fteids, Ip4Address ueIp) {
+    // The returned future is completed when the switch confirms the flow rules of the session.
+    protected CompletableFuture<Void> updatePfcpSessionHandler(FSeid fseid, List<FTeid> fteids, Ip4Address ueIp) {
+        return pfcpSessionOperationHandler(PfcpSessionOperation.update(fseid, fteids, ueIp));
+    }
+
+    // Process a batch of PFCP session operations as one unit. Flow rules are written with one FlowRuleOperations
+    // per P4 switch, and static routes are updated with one command per node. The result of each operation is recorded in the operation itself.
+    // The returned future is completed when the switches confirm the flow rules of the batch and the nodes ack its routes.
+    protected CompletableFuture<Void> pfcpSessionBatchHandler(List<PfcpSessionOperation> operations) {
+        // Operations carry their F-SEID as primitives, and the VIP of each UPF service is resolved once per batch.
+        TreeSet<Ip4Address> upfVips = new TreeSet<Ip4Address>();
+        Ip4Address[] operationVips = new Ip4Address[operations.size()];
+        int[] hashes = new int[operations.size()];
+        int count = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            PfcpSessionOperation operation = operations.get(i);
+            if (!operation.isSuccess()) {
+                continue;
+            }
+            // A batch spans few UPF services, so they are scanned rather than indexed.
+            Ip4Address upfVip = null;
+            for (Ip4Address known : upfVips) {
+                if (known.toInt() == operation.ipv4()) {
+                    upfVip = known;
+                    break;
+                }
+            }
+            if (upfVip == null) {
+                upfVip = Ip4Address.valueOf(operation.ipv4());
+                upfVips.add(upfVip);
+            }
+            operationVips[i] = upfVip;
+            hashes[count++] = operation.fseidHash();
+        }
+        ArrayList<Lock> locks = new ArrayList<Lock>();
+        for (Ip4Address upfVip : upfVips) {
+            locks.add(upfServiceLock(upfVip).readLock());
+        }
+        locks.addAll(sessionLocks(hashes, count));
+
+        lockAll(locks);
+        try {
+            PfcpSessionBatchContext batch = new PfcpSessionBatchContext();
+            for (int i = 0; i < operations.size(); i++) {
+                PfcpSessionOperation operation = operations.get(i);
+                if (!operation.isSuccess()) {
+                    continue;
+                }
+                try {
+                    switch (operation.type()) {
+                        case PFCP_SESSION_OPERATION_UPDATE:
+                            stageUpdatePfcpSession(batch, operation, operationVips[i]);
+                            break;
+                        case PFCP_SESSION_OPERATION_DELETE:
+                            stageDeletePfcpSession(batch, operation, operationVips[i]);
+                            break;
+                        default:
+                            operation.fail("Unsupported operation: " + operation.type());
+                            break;
+                    }
+                } catch (Exception e) {
+                    log.info("{} failed: {}", operation, e.toString());
+                    operation.fail(e.toString());
+                }
+            }
+            return batch.apply();
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    private CompletableFuture<Void> pfcpSessionOperationHandler(PfcpSessionOperation operation) {
+        CompletableFuture<Void> completion = pfcpSessionBatchHandler(Collections.singletonList(operation));
+        if (!operation.isSuccess()) {
+            return CompletableFuture.failedFuture(new IllegalStateException(operation.error()));
+        }
+        // The route of the session may fail after the operation has been staged.
+        return completion.thenRun(() -> {
+            if (!operation.isSuccess()) {
+                throw new IllegalStateException(operation.error());
+            }
+        });
+    }
+
+    private void stageUpdatePfcpSession(PfcpSessionBatchContext batch, PfcpSessionOperation operation, Ip4Address upfVip) {
         // Assuming that UPF uses single IP address for all GTP-U endpoints.
-        Ip4Address upfVip = fseid.getIpv4();
-        Ip4Address upfDip = null;
-        PfcpSession session = fseidToPfcpSession.get(fseid);
+        UpfService upfService = upfServices.get(upfVip);
+        Map<Ip4Address, UpfInstance> upfInstances = upfRegistry.instancesOf(upfVip);
+        if (upfService == null || upfInstances.isEmpty()) {
+            operation.fail(String.format("No UPF instance serves %s", upfVip));
+            return;
+        }
 
+        P4Manager p4Manager = upfService.getP4Manager();
+        TeidBlockAllocator blockAllocator = teidBlockAllocator;
+        Ip4Address upfDip = null;
+        PfcpSession session = pfcpSessionStore.get(operation.seid(), operation.ipv4());
         if (session == null) {
-            upfDip = upfSelector.selectUpf(upfVip);
-            session = new PfcpSession(fseid, upfDip, ueIp);
-            upfIpToUpfInstance.get(upfVip).get(upfDip).addPfcpSession(session);
-            fseidToPfcpSession.put(fseid, session);
+            FSeid fseid = new FSeid(operation.seid(), upfVip);
+            // Join the slot owning the TEID block of the session if there is one, so its F-TEIDs share the block rule.
+            UpfSlot slot = null;
+            if (blockAllocator != null && !operation.fteids().isEmpty()) {
+                slot = blockAllocator.slotOf(operation.fteids().get(0));
+            }
+            // Only the N6 downlink of PSA sessions is routed by UE IP blocks, and a session may carry no UE IP.
+            UpfInstance ueIpBlockOwner = null;
+            if (ueIpBlockAllocator != null && upfService.getIsPsa() && operation.ueIp() != null) {
+                ueIpBlockOwner = ueIpBlockAllocator.ownerOf(operation.ueIp());
+            }
+            if (slot != null && upfInstances.containsKey(slot.upfDip())) {
+                upfDip = slot.upfDip();
+            } else if (ueIpBlockOwner != null && upfInstances.get(ueIpBlockOwner.ip()) == ueIpBlockOwner) {
+                // Otherwise join the owner of the UE IP block, so the downlink shares the prefix route.
+                upfDip = ueIpBlockOwner.ip();
+                slot = ueIpBlockOwner.homeSlot();
+            } else {
+                upfDip = upfSelector.selectUpf(upfVip, fseid);
+                slot = upfInstances.get(upfDip).homeSlot();
+            }
+            if (slot == null) {
+                operation.fail(String.format("No UPF slot is available on %s", upfDip));
+                return;
+            }
+            session = new PfcpSession(fseid, upfDip, operation.ueIp());
+            session.setUpfSlot(slot);
+            slot.addPfcpSession(session);
+            pfcpSessionStore.put(session);
         } else {
             // Select identical UPF instance for all GTP-U endpoints of a PDU session.
             upfDip = session.upfDip();
         }
 
-        P4Manager p4Manager = upfServices.get(upfVip).getP4Manager();
-        for (FTeid fteid : fteids) {
-            if (!session.hasEndpoint(fteid)) {
-                FlowRule dnatRule = p4Manager.installUpfDnatTableRule(fteid.getIpv4(), fteid.getTeid(), upfDip);
+        int slotId = session.upfSlot().id();
+        for (FTeid fteid : operation.fteids()) {
+            if (session.hasEndpoint(fteid)) {
+                continue;
+            }
+            if (blockAllocator != null && blockAllocator.acquire(p4Manager, fteid, session.upfSlot(), rule -> batch.install(p4Manager, rule))) {
+                session.addEndpoint(fteid, null);
+            } else {
+                FlowRule dnatRule = p4Manager.buildUpfDnatTableRule(fteid.getIpv4(), fteid.getTeid(), slotId);
                 session.addEndpoint(fteid, dnatRule);
+                batch.install(p4Manager, dnatRule);
             }
         }
 
-        if (upfServices.get(upfVip).getIsPsa() && session.n6DlRoutingRule() == null) {
-            UpfInstance upf = upfIpToUpfInstance.get(upfVip).get(upfDip);
-            session.setN6DlRoutingRule(p4Manager.installIpRouteTableRule(ueIp, upf.nodePortNumber(), upf.nodeMac()));
+        if (upfService.getIsPsa() && operation.ueIp() != null && !session.hasN6DlRoutingRule() && !session.ueIpBlockRouted()) {
+            UpfInstance upf = upfInstanceOf(upfVip, upfDip);
+            UeIpBlockAllocator blockRouter = ueIpBlockAllocator;
+            if (blockRouter != null && blockRouter.acquire(p4Manager, operation.ueIp(), upf, rule -> batch.install(p4Manager, rule))) {
+                session.setUeIpBlockRouted(true);
+                flowRuleThroughputCollector.trackSession(session);
+                return;
+            }
+            FlowRule n6DlRoutingRule = p4Manager.buildIpRouteTableRule(operation.ueIp(), upf.nodePortNumber(), upf.nodeMac());
+            session.setN6DlRoutingRule(n6DlRoutingRule);
+            batch.install(p4Manager, n6DlRoutingRule);
 
-            String cmd = String.format("ip route add %s/32 proto static dev %s", ueIp, upf.getHostIntfName());
-            k8sManager.execHostRouteAgentCommand(upf.nodeIp(), cmd);
+            String cmd = String.format("ip route add %s/32 proto static dev %s", operation.ueIp(), upf.getHostIntfName());
+            batch.addRouteCommand(operation, upf.nodeIp(), cmd);
         }
+        flowRuleThroughputCollector.trackSession(session);
     }
 
-    protected synchronized void deleteUpfHandler(Ip4Address vip, Ip4Address dip) {
-        UpfInstance originalUpf = upfIpToUpfInstance.get(vip).get(dip);
-        upfIpToUpfInstance.get(vip).remove(dip);
+    private void stageDeletePfcpSession(PfcpSessionBatchContext batch, PfcpSessionOperation operation, Ip4Address vip) {
+        PfcpSession session = pfcpSessionStore.get(operation.seid(), operation.ipv4());
+        if (session == null) {
+            operation.fail(String.format("Unknown PFCP session %s", operation.fseid()));
+            return;
+        }
+        FSeid fseid = session.fseid();
+        UpfInstance upf = upfInstanceOf(vip, session.upfDip());
+        if (upf == null) {
+            operation.fail(String.format("No UPF instance %s serves %s", session.upfDip(), operation.fseid()));
+            return;
+        }
+        pfcpSessionStore.remove(fseid);
+        flowRuleThroughputCollector.untrackSession(session);
+
+        P4Manager p4Manager = upfServices.get(vip).getP4Manager();
+        UpfSlot slot = session.upfSlot();
+        slot.removePfcpSession(fseid);
+        if (slot.retireIfEmpty()) {
+            // The last session of a slot moved from a terminated UPF instance.
+            upf.removeSlot(slot);
+            batch.releaseSlot(p4Manager, slot);
+        }
+        for (int i = 0; i < session.endpointCount(); i++) {
+            if (session.hasDnatRule(i)) {
+                batch.remove(p4Manager, dnatRule(p4Manager, session, i));
+            } else {
+                teidBlockAllocator.release(session.endpoint(i), rule -> batch.removeShared(p4Manager, rule));
+            }
+        }
+        if (session.ueIpBlockRouted()) {
+            ueIpBlockAllocator.release(session.ueIp(), rule -> batch.removeShared(p4Manager, rule));
+        } else if (session.hasN6DlRoutingRule()) {
+            batch.remove(p4Manager, p4Manager.buildIpRouteTableRule(session.ueIp(), upf.nodePortNumber(), upf.nodeMac()));
+
+            String cmd = String.format("ip route del %s/32 dev %s", session.ueIp(), upf.getHostIntfName());
+            batch.addRouteCommand(operation, upf.nodeIp(), cmd);
+        }
+    }
+
+    // All sessions of the terminated UPF instance are moved slot by slot, so the DNAT rules of the sessions
+    // are left untouched. If a slot can't be moved, e.g. no UPF instance can take it over, the instance is put
+    // back into the UPF service and kept running with the sessions left.
+    protected void deleteUpfHandler(Ip4Address vip, Ip4Address dip) {
+        ReentrantLock rebalanceLock = rebalanceLock(vip);
+        rebalanceLock.lock();
+        try {
+            UpfInstance originalUpf = null;
+            Lock membershipLock = upfServiceLock(vip).writeLock();
+            membershipLock.lock();
+            try {
+                // No session can be assigned to originalUpf once it is removed from the UPF service.
+                originalUpf = upfRegistry.remove(vip, dip);
+                if (originalUpf != null) {
+                    drainingUpfs.put(dip, originalUpf);
+                }
+            } finally {
+                membershipLock.unlock();
+            }
+            if (originalUpf == null) {
+                log.info("deleteUpfHandler: {} doesn't belong to {}", dip, vip);
+                return;
+            }
+
+            ArrayList<CompletableFuture<Void>> completions = new ArrayList<CompletableFuture<Void>>();
+            for (UpfSlot slot : originalUpf.slots()) {
+                completions.add(drainUpfSlot(vip, slot, originalUpf));
+            }
+            try {
+                CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).join();
+            } catch (Exception e) {
+                log.info(e.toString());
+            }
+            membershipLock.lock();
+            try {
+                drainingUpfs.remove(dip, originalUpf);
+                if (!originalUpf.slots().isEmpty()) {
+                    upfRegistry.add(vip, originalUpf);
+                }
+            } finally {
+                membershipLock.unlock();
+            }
+            if (!originalUpf.slots().isEmpty()) {
+                log.info("deleteUpfHandler: {} slots of {} are not drained, {} is kept", originalUpf.slots().size(), dip, originalUpf.name());
+                return;
+            }
 
-        // TODO: The threshold should be configurable
-        rebalance(vip, originalUpf.pfcpSessions().values(), originalUpf, 2.5);
+            log.info("After migrating all sessions, terminate the old UPF and remove its SNAT and routing rule");
+            k8sManager.execPodCommand(originalUpf.name(), "pkill upfd");
+            upfServices.get(vip).getP4Manager().removeFlowRules(originalUpf.snatRule(), originalUpf.routingRule());
+            rebalanceController.forget(dip);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
 
-        log.info("After migrating all sessions, terminate the old UPF and remove its SNAT and routing rule");
-        k8sManager.execPodCommand(originalUpf.name(), "pkill upfd");
-        flowRuleService.removeFlowRules(originalUpf.snatRule(), originalUpf.routingRule());
+    // Called by alertQueue, one alert at a time.
+    private void overloadAlertHandler(String name, Ip4Address dip, double threshold) {
+        // The pod may have been given another IP, e.g. after a restart, then find it by its name.
+        UpfInstance upf = upfRegistry.byDip(dip);
+        if (upf == null) {
+            upf = upfRegistry.byName(name);
+        }
+        if (upf != null) {
+            dip = upf.ip();
+        }
+        overloadHandler(name, upfRegistry.vipOf(dip), dip, threshold);
     }
 
-    protected synchronized void overloadHandler(String name, Ip4Address vip, Ip4Address dip, double threshold) {
-        double exceededThroughput = upfSelector.getUpfThroughput(name) - threshold;
-        log.info("overloadHandler: start to rebalance {} (vip = {}, dip = {}), exceeding {} Gbps", name, vip, dip, exceededThroughput);
+    protected void overloadHandler(String name, Ip4Address vip, Ip4Address dip, double threshold) {
+        if (vip == null) {
+            log.info("{} ({}) doesn't belong to any UPF service", name, dip);
+            return;
+        }
+        ReentrantLock rebalanceLock = rebalanceLock(vip);
+        rebalanceLock.lock();
+        try {
+            rebalanceOverloadedUpf(name, vip, dip, threshold);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
 
+    // The threshold of an alert is for a UPF instance of the default capacity. Each UPF instance is held to the
+    // same utilization, i.e. threshold / defaultUpfCapacityGbps, of its own capacity.
+    private void rebalanceOverloadedUpf(String name, Ip4Address vip, Ip4Address dip, double threshold) {
         try {
-            if (!upfIpToUpfInstance.get(vip).containsKey(dip)) {
+            UpfInstance originalUpf = upfRegistry.get(vip, dip);
+            if (originalUpf == null) {
                 // When AlertManagerWebhookHandler calling this function, the "dip" UPF may happen to
                 // be terminated, which is handled by deleteUpfHandler.
                 log.info("{} has been terminated!", dip);
                 return;
             }
 
-            UpfInstance originalUpf = upfIpToUpfInstance.get(vip).get(dip);
-            if (originalUpf.pfcpSessions().size() <= 1) {
+            if (rebalanceController.isInCooldown(dip)) {
+                rebalanceController.suppressed(RebalanceController.Decision.REBALANCE_SUPPRESSED_COOLDOWN, dip);
+                return;
+            }
+            double utilizationThreshold = threshold / defaultUpfCapacityGbps;
+            double upfThroughput = upfSelector.getUpfThroughput(name);
+            if (upfThroughput <= utilizationThreshold * originalUpf.capacity()) {
+                log.info("overloadHandler: {} ({} Gbps) is below {} of its capacity {} Gbps", name, upfThroughput, utilizationThreshold, originalUpf.capacity());
+                rebalanceController.suppressed(RebalanceController.Decision.REBALANCE_SUPPRESSED_BELOW_WATERMARK, dip);
+                return;
+            }
+            // Shed down to the low watermark, so the UPF instance isn't overloaded again by a small increase.
+            double exceededThroughput = upfThroughput - rebalanceController.lowWatermark(utilizationThreshold) * originalUpf.capacity();
+            log.info("overloadHandler: start to rebalance {} (vip = {}, dip = {}), exceeding {} Gbps", name, vip, dip, exceededThroughput);
+
+            if (originalUpf.sessionCount() <= 1) {
                 log.info("{} has no enough session to migrate", dip);
                 return;
             }
 
             log.info("PFCP session list:");
             log.info("================================");
-            List<PfcpSession> sessions = new ArrayList<PfcpSession>();
-            for (PfcpSession session : originalUpf.pfcpSessions().values()) {
-                double throughput = 0;
-                for (FlowRule flowRule : session.fteidToDnatRules().values()) {
-                    throughput += flowRuleThroughputCollector.getThroughput(flowRule.id());
-                }
-                throughput += flowRuleThroughputCollector.getThroughput(session.n6DlRoutingRule().id());
+            List<PfcpSession> sessions = new ArrayList<PfcpSession>(originalUpf.sessionCount());
+            double attributedThroughput = 0;
+            int sharingSessions = 0;
+            for (PfcpSession session : originalUpf.pfcpSessions()) {
+                double throughput = flowRuleThroughputCollector.getSessionThroughput(session.fseid());
                 session.updateThroughput(throughput * 8 / 1000 / 1000 / 1000);
+                attributedThroughput += session.throughput();
+                if (session.usesBlockRules()) {
+                    sharingSessions++;
+                }
                 sessions.add(session);
+            }
+            // Traffic matched by TEID and UE IP block rules is counted per block, so it is split evenly among
+            // the sessions using block rules.
+            double sharedThroughput = sharingSessions == 0 ? 0 : Math.max(0, upfThroughput - attributedThroughput) / sharingSessions;
+            for (PfcpSession session : sessions) {
+                if (session.usesBlockRules()) {
+                    session.updateThroughput(session.throughput() + sharedThroughput);
+                }
                 log.info("FSEID {}, throughput = {} Gbps", session.fseid(), session.throughput());
             }
             log.info("================================");
-            Collections.sort(sessions);
-
-            // If the overload is caused by a single session, just leave it alone. There is no UPF can accommodate it.
-            for (int i = 0; i < sessions.size() - 1; i++) {
-                exceededThroughput -= sessions.get(i).throughput();
-                if (exceededThroughput < 0) {
-                    Collection<PfcpSession> subSessions = sessions.subList(0, i + 1);
-                    rebalance(vip, subSessions, originalUpf, threshold);
-                    break;
+
+            // Sessions which have just been placed are not migrated again.
+            List<PfcpSession> eligibleSessions = new ArrayList<PfcpSession>();
+            for (PfcpSession session : sessions) {
+                if (rebalanceController.isEligible(session)) {
+                    eligibleSessions.add(session);
                 }
             }
-            log.info("overloadHandler: rebalance of {} (vip = {}, dip = {}) completed", name, vip, dip);
+            // If shedding the overload takes every session, just leave them alone. No UPF can accommodate them.
+            List<PfcpSession> subSessions = sessionSubsetSelector.select(eligibleSessions, exceededThroughput);
+            if (subSessions.isEmpty()) {
+                rebalanceController.suppressed(RebalanceController.Decision.REBALANCE_SUPPRESSED_NO_ELIGIBLE_SESSION, dip);
+                return;
+            }
+            if (!rebalanceController.acquireBudget(subSessions.size())) {
+                rebalanceController.suppressed(RebalanceController.Decision.REBALANCE_SUPPRESSED_BUDGET, dip);
+                return;
+            }
+            // Targets are packed up to the low watermark too.
+            ConcurrentHashMultiset<Ip4Address> migratedTo = ConcurrentHashMultiset.create();
+            UpfAllocation allocation = rebalance(vip, subSessions, originalUpf, rebalanceController.lowWatermark(utilizationThreshold), migratedTo);
+            // Only migrated sessions take from the budget, and only UPF instances whose load has changed cool down.
+            rebalanceController.releaseBudget(subSessions.size() - migratedTo.size());
+            if (allocation.assignments.isEmpty()) {
+                rebalanceController.suppressed(RebalanceController.Decision.REBALANCE_SUPPRESSED_NO_CAPACITY, dip);
+                log.info("overloadHandler: no UPF instance can take sessions of {} (vip = {}, dip = {})", name, vip, dip);
+                return;
+            }
+            if (migratedTo.isEmpty()) {
+                rebalanceController.failed(dip);
+                log.info("overloadHandler: rebalance of {} (vip = {}, dip = {}) failed", name, vip, dip);
+                return;
+            }
+            rebalanceController.executed(dip, migratedTo.elementSet());
+            log.info("overloadHandler: rebalance of {} (vip = {}, dip = {}) completed, {} sessions migrated", name, vip, dip, migratedTo.size());
         } catch (Exception e) {
             log.info(e.toString());
         }
     }
 
-    private void rebalance(Ip4Address upfVip, Collection<PfcpSession> sessions, UpfInstance originalUpf, double threshold) {
-        ExecutorService executorService = Executors.newCachedThreadPool();
+    // Each session migrated successfully adds its target to migratedTo.
+    private UpfAllocation rebalance(Ip4Address upfVip, Collection<PfcpSession> sessions, UpfInstance originalUpf, double utilizationThreshold,
+            Multiset<Ip4Address> migratedTo) {
+        ArrayList<CompletableFuture<Void>> completions = new ArrayList<CompletableFuture<Void>>();
+        UpfAllocation allocation = upfSelector.allocateUpfsForSessions(upfVip, sessions, originalUpf, utilizationThreshold);
+        if (!allocation.unplaced.isEmpty()) {
+            log.info("rebalance: {} of {} sessions stay on {}, {} Gbps of demand is unplaced", allocation.unplaced.size(),
+                    sessions.size(), originalUpf.name(), allocation.unplacedThroughput());
+        }
+        for (Map.Entry<UpfInstance, Collection<PfcpSession>> entry : allocation.assignments.entrySet()) {
+            completions.add(migratePfcpSessions(upfVip, entry.getValue(), originalUpf, entry.getKey(), migratedTo));
+        }
         try {
-            for (Map.Entry<UpfInstance, Collection<PfcpSession>> entry : upfSelector.allocateUpfsForSessions(upfVip, sessions, originalUpf, threshold).entrySet()) {
-                executorService.execute(() -> {
-                    migratePfcpSessions(upfVip, entry.getValue(), originalUpf, entry.getKey());
-                });
-            }
-            executorService.shutdown();
-            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).join();
         } catch (Exception e) {
-            executorService.shutdownNow();
             log.info(e.toString());
         }
+        log.info("rebalance: MigrationEngine {}", migrationEngine);
+        return allocation;
     }
 
-    private void migratePfcpSessions(Ip4Address upfVip, Collection<PfcpSession> sessions, UpfInstance originalUpf, UpfInstance targetUpf) {
+    private CompletableFuture<Void> migratePfcpSessions(Ip4Address upfVip, Collection<PfcpSession> sessions, UpfInstance originalUpf, UpfInstance targetUpf,
+            Multiset<Ip4Address> migratedTo) {
         log.info("migratePfcpSessions: start to migrate {} to ({}, {})", Arrays.toString(sessions.toArray()), targetUpf.name(), targetUpf.ip());
-        ExecutorService executorService = Executors.newCachedThreadPool();
+        ArrayList<Supplier<CompletableFuture<Void>>> migrations = new ArrayList<Supplier<CompletableFuture<Void>>>(sessions.size());
         for (PfcpSession session : sessions) {
-            executorService.execute(() -> {
-                migratePfcpSession(upfVip, session, originalUpf, targetUpf);
+            migrations.add(() -> migratePfcpSession(upfVip, session, originalUpf, targetUpf).thenRun(() -> migratedTo.add(targetUpf.ip())));
+        }
+        // Engine threads are only occupied while the migrations are submitted, not while flow rules are being
+        // confirmed, but a migration counts against the limits until its flow rules are confirmed.
+        return migrationEngine.submitAll("migratePfcpSessions to " + targetUpf.name(), targetUpf.ip(), migrations);
+    }
+
+    // The returned future is completed when the switch confirms the flow rules of the migrated session.
+    private CompletableFuture<Void> migratePfcpSession(Ip4Address upfVip, PfcpSession session, UpfInstance originalUpf, UpfInstance targetUpf) {
+        FSeid fseid = session.fseid();
+        Lock sessionLock = sessionLock(fseid);
+        sessionLock.lock();
+        try {
+            if (pfcpSessionStore.get(fseid) != session) {
+                log.info("migratePfcpSession: {} has been deleted", fseid);
+                return CompletableFuture.completedFuture(null);
+            }
+            return migratePfcpSessionLocked(upfVip, session, originalUpf, targetUpf).whenComplete((v, e) -> {
+                if (e == null) {
+                    log.info("migratePfcpSession: migration of {} completed", fseid);
+                } else {
+                    log.info("migratePfcpSession: migration of {} failed, {}", fseid, e.toString());
+                }
             });
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> drainUpfSlot(Ip4Address upfVip, UpfSlot slot, UpfInstance originalUpf) {
+        P4Manager p4Manager = upfServices.get(upfVip).getP4Manager();
+        if (slot.size() == 0) {
+            originalUpf.removeSlot(slot);
+            p4Manager.removeFlowRules(slot.slotRule());
+            p4Manager.releaseUpfSlot(slot.id());
+            return CompletableFuture.completedFuture(null);
+        }
+        Ip4Address targetDip = upfSelector.selectUpf(upfVip, slot.size());
+        UpfInstance targetUpf = targetDip == null ? null : upfRegistry.get(upfVip, targetDip);
+        if (targetUpf == null) {
+            log.info("drainUpfSlot: no UPF instance can take over {}", slot);
+            return CompletableFuture.completedFuture(null);
         }
-        executorService.shutdown();
+        return migrationEngine.submit(targetUpf.ip(), () -> migrateUpfSlot(upfVip, slot, originalUpf, targetUpf)).whenComplete((v, e) -> {
+            if (e == null) {
+                log.info("drainUpfSlot: migration of {} completed", slot);
+            } else {
+                log.info("drainUpfSlot: migration of {} failed, {}", slot, e.toString());
+            }
+        });
+    }
+
+    // Move all sessions of the slot to targetUpf by rewriting the slot rule. Static routes and N6 routing rules
+    // still follow each session, since they are per UE.
+    private CompletableFuture<Void> migrateUpfSlot(Ip4Address upfVip, UpfSlot slot, UpfInstance originalUpf, UpfInstance targetUpf) {
+        log.info("migrateUpfSlot: start to migrate {} ({} sessions) to ({}, {})", slot, slot.size(), targetUpf.name(), targetUpf.ip());
+        // The UPF instance is no longer selectable, so no session joins the slot meanwhile.
+        List<PfcpSession> sessions = slot.pfcpSessions();
+        List<Lock> locks = sessionLocks(sessions);
+        lockAll(locks);
         try {
-            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            executorService.shutdownNow();
-            log.info(e.toString());
+            UpfService upfService = upfServices.get(upfVip);
+            P4Manager p4Manager = upfService.getP4Manager();
+            FlowRule slotRule = p4Manager.buildUpfSlotTableRule(slot.id(), targetUpf.ip());
+            slot.moveTo(targetUpf.ip(), slotRule);
+            originalUpf.removeSlot(slot);
+            targetUpf.addSlot(slot);
+            if (teidBlockAllocator != null) {
+                teidBlockAllocator.slotMoved(slot);
+            }
+
+            ArrayList<String> cmds = new ArrayList<String>();
+            boolean sameNode = originalUpf.nodeIp().equals(targetUpf.nodeIp());
+            ArrayList<Ip4Address> unroutedUeIps = new ArrayList<Ip4Address>();
+            ArrayList<PfcpSession> rerouted = new ArrayList<PfcpSession>();
+            for (PfcpSession session : sessions) {
+                session.setUpfDip(targetUpf.ip());
+                if (session.ueIpBlockRouted()) {
+                    // The UE leaves the UE IP block of originalUpf, so it needs its own routes.
+                    unroutedUeIps.add(session.ueIp());
+                    session.setUeIpBlockRouted(false);
+                }
+                // Only PSA sessions with a UE IP have downlink routes to follow them.
+                boolean routed = upfService.getIsPsa() && session.ueIp() != null;
+                if (routed && sameNode && session.hasN6DlRoutingRule()) {
+                    cmds.add(String.format("ip route change %s/32 proto static dev %s", session.ueIp(), targetUpf.getHostIntfName()));
+                } else if (routed) {
+                    cmds.add(String.format("ip route add %s/32 proto static dev %s", session.ueIp(), targetUpf.getHostIntfName()));
+                    session.setN6DlRoutingRule(p4Manager.buildIpRouteTableRule(session.ueIp(), targetUpf.nodePortNumber(), targetUpf.nodeMac()));
+                    rerouted.add(session);
+                }
+                flowRuleThroughputCollector.trackSession(session);
+            }
+            // Routes of the slot go in one ip batch, and the slot is only redirected after they are all done.
+            ArrayList<CompletableFuture<Void>> routeAcks = new ArrayList<CompletableFuture<Void>>();
+            for (String cmd : cmds) {
+                routeAcks.add(k8sManager.submitRouteCommand(targetUpf.nodeIp(), cmd));
+            }
+            // Sessions deleted meanwhile have had their rules removed, so only their UE IP blocks are released.
+            return afterRoutes(routeAcks, locks, () -> {
+                ArrayList<FlowRule> newRules = new ArrayList<FlowRule>();
+                if (!slot.retired()) {
+                    newRules.add(slot.slotRule());
+                }
+                for (PfcpSession session : rerouted) {
+                    FlowRule n6DlRoutingRule = currentN6DlRoutingRule(upfVip, p4Manager, session);
+                    if (n6DlRoutingRule != null) {
+                        newRules.add(n6DlRoutingRule);
+                    }
+                }
+                // The prefix routes are only removed once the /32 routes are confirmed, since both are written in
+                // parallel stages. If the rules fail, the UE IP blocks are kept.
+                UeIpBlockAllocator ueIpBlocks = ueIpBlockAllocator;
+                return p4Manager.applyFlowRules(newRules).thenRun(() -> {
+                    for (Ip4Address ueIp : unroutedUeIps) {
+                        ueIpBlocks.release(ueIp, rule -> p4Manager.removeFlowRules(rule));
+                    }
+                });
+            });
+        } finally {
+            unlockAll(locks);
         }
     }
 
-    private void migratePfcpSession(Ip4Address upfVip, PfcpSession session, UpfInstance originalUpf, UpfInstance targetUpf) {
+    private CompletableFuture<Void> migratePfcpSessionLocked(Ip4Address upfVip, PfcpSession session, UpfInstance originalUpf, UpfInstance targetUpf) {
         FSeid fseid = session.fseid();
         log.info("migratePfcpSession: start to migrate {}", fseid);
+        UpfSlot targetSlot = targetUpf.homeSlot();
+        if (targetSlot == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No UPF slot is available on " + targetUpf.ip()));
+        }
         session.setUpfDip(targetUpf.ip());
-        originalUpf.removePfcpSession(fseid);
-        targetUpf.addPfcpSession(session);
-
-        P4Manager p4Manager = upfServices.get(upfVip).getP4Manager();
-        HashMap<FTeid, FlowRule> newDnatRules = new HashMap<FTeid, FlowRule>();
-        BiConsumer<FTeid, FlowRule> updateDnatRule = (fteid, rule) -> {
+        UpfSlot originalSlot = session.upfSlot();
+        originalSlot.removePfcpSession(fseid);
+        targetSlot.addPfcpSession(session);
+        session.setUpfSlot(targetSlot);
+
+        UpfService upfService = upfServices.get(upfVip);
+        P4Manager p4Manager = upfService.getP4Manager();
+        if (originalSlot.retireIfEmpty()) {
+            originalUpf.removeSlot(originalSlot);
+            p4Manager.removeFlowRules(originalSlot.slotRule());
+            p4Manager.releaseUpfSlot(originalSlot.id());
+        }
+        FlowRule[] newDnatRules = new FlowRule[session.endpointCount()];
+        ArrayList<FTeid> unblockedFteids = new ArrayList<FTeid>();
+        for (int i = 0; i < newDnatRules.length; i++) {
+            // The F-TEID leaves its TEID block, and gets its own rule, which has higher priority than the block rule.
+            if (!session.hasDnatRule(i)) {
+                unblockedFteids.add(session.endpoint(i));
+            }
             // Directly install new flow rule, without deleting the stale one.
             // Originally I perform deletion first, but it turns out that both flow rules are deleted.
-            newDnatRules.put(fteid, p4Manager.installUpfDnatTableRule(fteid.getIpv4(), fteid.getTeid(), targetUpf.ip()));
-        };
-
-        if (originalUpf.nodeIp().equals(targetUpf.nodeIp())) {
+            newDnatRules[i] = dnatRule(p4Manager, session, i);
+        }
+        session.setDnatRules(newDnatRules);
+
+        // A UE routed by the prefix of its UE IP block gets its own routes, as if it were moved to another node.
+        boolean ueIpBlockRouted = session.ueIpBlockRouted();
+        session.setUeIpBlockRouted(false);
+        // Only the route is changed, the N6 routing rule already points to the node.
+        boolean sameNodeRoute = originalUpf.nodeIp().equals(targetUpf.nodeIp()) && !ueIpBlockRouted;
+        CompletableFuture<Void> routeAck = CompletableFuture.completedFuture(null);
+        if (!upfService.getIsPsa() || session.ueIp() == null) {
+            // Only PSA sessions with a UE IP have downlink routes to follow them.
+        } else if (sameNodeRoute) {
             log.info("1. Update static routes on node");
             String cmd = String.format("ip route change %s/32 proto static dev %s", session.ueIp(), targetUpf.getHostIntfName());
-            k8sManager.execHostRouteAgentCommand(originalUpf.nodeIp(), cmd);
-
-            log.info("2. Update relative P4 DNAT rules");
-            session.forEachEndpoint(updateDnatRule);
-            session.setFteidToDnatRules(newDnatRules);
+            // Routes of sessions migrated concurrently to the same node share an ip batch.
+            routeAck = k8sManager.submitRouteCommand(originalUpf.nodeIp(), cmd);
         } else {
             log.info("1. Install new static route on target ndoe");
             String cmd = String.format("ip route add %s/32 proto static dev %s", session.ueIp(), targetUpf.getHostIntfName());
-            k8sManager.execHostRouteAgentCommand(targetUpf.nodeIp(), cmd);
+            routeAck = k8sManager.submitRouteCommand(targetUpf.nodeIp(), cmd);
+            session.setN6DlRoutingRule(p4Manager.buildIpRouteTableRule(session.ueIp(), targetUpf.nodePortNumber(), targetUpf.nodeMac()));
+        }
+        flowRuleThroughputCollector.trackSession(session);
+        return afterRoutes(Collections.singletonList(routeAck), Collections.singletonList(sessionLock(fseid)), () -> {
+            ArrayList<FlowRule> newRules = new ArrayList<FlowRule>();
+            // A session deleted meanwhile has had its rules removed.
+            if (pfcpSessionStore.get(fseid) == session) {
+                log.info("2. Update relative P4 DNAT and routing rules");
+                for (int i = 0; i < session.endpointCount(); i++) {
+                    newRules.add(dnatRule(p4Manager, session, i));
+                }
+                FlowRule n6DlRoutingRule = currentN6DlRoutingRule(upfVip, p4Manager, session);
+                if (n6DlRoutingRule != null && !sameNodeRoute) {
+                    newRules.add(n6DlRoutingRule);
+                }
+            }
+            // Only after the rules of the F-TEIDs are confirmed, since a block rule is removed with the last F-TEID
+            // of the block, and the uplink of the other F-TEIDs in the block would be dropped until their rules land.
+            // Likewise the prefix route of a UE IP block is removed with its last UE. Removals and installs of
+            // concurrent writes aren't ordered on the switch, so the releases wait for the confirmation. If the rules
+            // fail, the blocks are kept.
+            TeidBlockAllocator teidBlocks = teidBlockAllocator;
+            UeIpBlockAllocator ueIpBlocks = ueIpBlockAllocator;
+            return p4Manager.applyFlowRules(newRules).thenRun(() -> {
+                for (FTeid fteid : unblockedFteids) {
+                    teidBlocks.release(fteid, rule -> p4Manager.removeFlowRules(rule));
+                }
+                if (ueIpBlockRouted) {
+                    ueIpBlocks.release(session.ueIp(), rule -> p4Manager.removeFlowRules(rule));
+                }
+            });
+        });
+    }
 
-            log.info("2. Update relative P4 DNAT and routing rules");
-            session.forEachEndpoint(updateDnatRule);
-            session.setFteidToDnatRules(newDnatRules);
-            FlowRule n6DlRoutingRule = p4Manager.installIpRouteTableRule(session.ueIp(), targetUpf.nodePortNumber(), targetUpf.nodeMac());
-            session.setN6DlRoutingRule(n6DlRoutingRule);
-            p4Manager.waitFlowRulesActionComplete(n6DlRoutingRule);
+    // Waits for the route acks without holding the session locks, since the host-route-agent may take a while,
+    // and session setup would wait on the locks meanwhile. Then writes the flow rules under the locks again, whether
+    // the routes succeeded or not. The rules are built from the state of the sessions at that time, so a session
+    // deleted or migrated again meanwhile isn't rolled back by this migration.
+    private CompletableFuture<Void> afterRoutes(List<CompletableFuture<Void>> routeAcks, List<Lock> locks,
+            Supplier<CompletableFuture<Void>> writeRules) {
+        return CompletableFuture.allOf(routeAcks.toArray(new CompletableFuture<?>[0])).handle((v, e) -> null).thenCompose(v -> {
+            lockAll(locks);
+            try {
+                return writeRules.get();
+            } finally {
+                unlockAll(locks);
+            }
+        });
+    }
+
+    // The UPF instance upfDip of the UPF service, which may have been removed from it but not drained yet.
+    private UpfInstance upfInstanceOf(Ip4Address upfVip, Ip4Address upfDip) {
+        UpfInstance upf = upfRegistry.get(upfVip, upfDip);
+        if (upf == null) {
+            upf = drainingUpfs.get(upfDip);
+        }
+        return upf;
+    }
+
+    // The N6 downlink routing rule of the session towards the UPF instance it is on now, or null if the session
+    // has been deleted or has no route of its own.
+    private FlowRule currentN6DlRoutingRule(Ip4Address upfVip, P4Manager p4Manager, PfcpSession session) {
+        UpfInstance upf = upfInstanceOf(upfVip, session.upfDip());
+        if (upf == null || !session.hasN6DlRoutingRule() || pfcpSessionStore.get(session.fseid()) != session) {
+            return null;
+        }
+        return p4Manager.buildIpRouteTableRule(session.ueIp(), upf.nodePortNumber(), upf.nodeMac());
+    }
+
+    // DNAT rules are not kept by the sessions, but rebuilt from the F-TEID and the current slot of the session.
+    // A flow rule is identified by its selector, i.e. the F-TEID, so the rebuilt rule also removes or replaces
+    // the installed one if it points to another slot.
+    private static FlowRule dnatRule(P4Manager p4Manager, PfcpSession session, int index) {
+        FTeid fteid = session.endpoint(index);
+        return p4Manager.buildUpfDnatTableRule(fteid.getIpv4(), fteid.getTeid(), session.upfSlot().id());
+    }
+
+    // The returned future is completed when the switch confirms the removal of the flow rules of the session.
+    protected CompletableFuture<Void> deletePfcpSessionHandler(FSeid fseid) {
+        return pfcpSessionOperationHandler(PfcpSessionOperation.delete(fseid));
+    }
+
+    // The stripe of a session is picked by the hash of its F-SEID, see FSeid.hash(), so it is found from the
+    // primitives of a request without an FSeid.
+    private Lock sessionLock(FSeid fseid) {
+        return sessionLocks.getAt(fseid.hashCode() & (sessionLocks.size() - 1));
+    }
+
+    // Stripes of the given F-SEID hashes, in stripe order so that threads locking several sessions can't deadlock.
+    // A stripe shared by several sessions is returned once.
+    private List<Lock> sessionLocks(int[] hashes, int count) {
+        int[] stripes = new int[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = hashes[i] & (sessionLocks.size() - 1);
+        }
+        Arrays.sort(stripes);
+        ArrayList<Lock> locks = new ArrayList<Lock>();
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                locks.add(sessionLocks.getAt(stripes[i]));
+            }
         }
+        return locks;
+    }
 
-        p4Manager.waitFlowRulesActionComplete(new ArrayList<FlowRule>(newDnatRules.values()).toArray(new FlowRule[0]));
-        log.info("migratePfcpSession: migration of {} completed", fseid);
+    private List<Lock> sessionLocks(List<PfcpSession> sessions) {
+        int[] hashes = new int[sessions.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = sessions.get(i).fseid().hashCode();
+        }
+        return sessionLocks(hashes, hashes.length);
     }
 
-    protected synchronized void deletePfcpSessionHandler(FSeid fseid, Ip4Address vip) {
-        PfcpSession session = fseidToPfcpSession.get(fseid);
-        UpfInstance upf = upfIpToUpfInstance.get(vip).get(session.upfDip());
-        fseidToPfcpSession.remove(fseid);
-        upf.removePfcpSession(fseid);
+    private ReentrantReadWriteLock upfServiceLock(Ip4Address upfVip) {
+        return upfServiceLocks.computeIfAbsent(upfVip, k -> new ReentrantReadWriteLock());
+    }
 
-        session.forEachEndpoint((fteid, rule) -> flowRuleService.removeFlowRules(rule));
-        flowRuleService.removeFlowRules(session.n6DlRoutingRule());
+    private ReentrantLock rebalanceLock(Ip4Address upfVip) {
+        return rebalanceLocks.computeIfAbsent(upfVip, k -> new ReentrantLock());
+    }
 
-        String cmd = String.format("ip route del %s/32 dev %s", session.ueIp(), upf.getHostIntfName());
-        k8sManager.execHostRouteAgentCommand(upf.nodeIp(), cmd);
+    private static void lockAll(List<Lock> locks) {
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private static void unlockAll(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    // Flow rules and static routes staged by pfcpSessionBatchHandler.
+    private class PfcpSessionBatchContext {
+        private final HashMap<P4Manager, LinkedHashSet<FlowRule>> rulesToInstall = new HashMap<P4Manager, LinkedHashSet<FlowRule>>();
+        private final HashMap<P4Manager, LinkedHashSet<FlowRule>> rulesToRemove = new HashMap<P4Manager, LinkedHashSet<FlowRule>>();
+        private final LinkedHashMap<Ip4Address, List<RouteCommand>> routeCommands = new LinkedHashMap<Ip4Address, List<RouteCommand>>();
+        private final HashMap<P4Manager, List<UpfSlot>> slotsToRelease = new HashMap<P4Manager, List<UpfSlot>>();
+
+        public void install(P4Manager p4Manager, FlowRule rule) {
+            rulesToInstall.computeIfAbsent(p4Manager, k -> new LinkedHashSet<FlowRule>()).add(rule);
+        }
+
+        public void remove(P4Manager p4Manager, FlowRule rule) {
+            // A rule staged earlier in the same batch has not been written to the switch yet.
+            LinkedHashSet<FlowRule> pending = rulesToInstall.get(p4Manager);
+            if (pending == null || !pending.remove(rule)) {
+                rulesToRemove.computeIfAbsent(p4Manager, k -> new LinkedHashSet<FlowRule>()).add(rule);
+            }
+        }
+
+        // Removes a block rule, which may be shared with sessions of other batches. Its removal is submitted right
+        // away, so it is written before the rule of a block acquired next, unless the rule has been staged by this
+        // batch, then it is just not installed.
+        public void removeShared(P4Manager p4Manager, FlowRule rule) {
+            LinkedHashSet<FlowRule> pending = rulesToInstall.get(p4Manager);
+            if (pending == null || !pending.remove(rule)) {
+                p4Manager.removeFlowRules(rule);
+            }
+        }
+
+        public void releaseSlot(P4Manager p4Manager, UpfSlot slot) {
+            remove(p4Manager, slot.slotRule());
+            slotsToRelease.computeIfAbsent(p4Manager, k -> new ArrayList<UpfSlot>()).add(slot);
+        }
+
+        public void addRouteCommand(PfcpSessionOperation operation, Ip4Address nodeIp, String cmd) {
+            routeCommands.computeIfAbsent(nodeIp, k -> new ArrayList<RouteCommand>()).add(new RouteCommand(operation, cmd));
+        }
+
+        // The returned future is completed when the flow rules are confirmed by all switches and the routes are
+        // acked by all nodes. A failed route fails the operation which staged it, not the whole batch.
+        public CompletableFuture<Void> apply() {
+            HashSet<P4Manager> managers = new HashSet<P4Manager>(rulesToInstall.keySet());
+            managers.addAll(rulesToRemove.keySet());
+            ArrayList<CompletableFuture<Void>> completions = new ArrayList<CompletableFuture<Void>>();
+            for (P4Manager manager : managers) {
+                completions.add(manager.applyFlowRuleBatch(rulesToRemove.getOrDefault(manager, new LinkedHashSet<FlowRule>()),
+                        rulesToInstall.getOrDefault(manager, new LinkedHashSet<FlowRule>())));
+                // The removal of the slot rules has been submitted, so the slots can be reused.
+                for (UpfSlot slot : slotsToRelease.getOrDefault(manager, new ArrayList<UpfSlot>())) {
+                    manager.releaseUpfSlot(slot.id());
+                }
+            }
+            for (Map.Entry<Ip4Address, List<RouteCommand>> entry : routeCommands.entrySet()) {
+                Ip4Address nodeIp = entry.getKey();
+                for (RouteCommand route : entry.getValue()) {
+                    completions.add(k8sManager.submitRouteCommand(nodeIp, route.cmd).handle((r, e) -> {
+                        if (e != null) {
+                            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                            route.operation.fail(String.format("Route failed on %s: %s", nodeIp, cause.getMessage()));
+                        }
+                        return null;
+                    }));
+                }
+            }
+            return CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0]));
+        }
+    }
+
+    private static class RouteCommand {
+        private final PfcpSessionOperation operation;
+        private final String cmd;
+
+        RouteCommand(PfcpSessionOperation operation, String cmd) {
+            this.operation = operation;
+            this.cmd = cmd;
+        }
     }
 
     // Proxy ARP
@@ -471,11 +1483,13 @@ public class UpflbControl implements SomeInterface {
         }
     }
 
+    // Alerts are only queued here, alertQueue runs the rebalances.
     private class AlertManagerWebhookHandler implements HttpHandler {
+        private final ObjectReader jsonReader = new ObjectMapper().reader();
+
         public void handle(HttpExchange exchange) throws IOException {
-            log.info("AlertManagerWebhookHandler, Thread #{}", Thread.currentThread().getId());
-            String bytes = new String(exchange.getRequestBody().readAllBytes());
-            JsonNode reqBody = new ObjectMapper().readTree(bytes);
+            log.debug("AlertManagerWebhookHandler, Thread #{}", Thread.currentThread().getId());
+            JsonNode reqBody = jsonReader.readTree(exchange.getRequestBody());
 
             // Reply to AlertManager before actually performing rebalancing.
             // This should prevent the retries.
@@ -488,17 +1502,18 @@ public class UpflbControl implements SomeInterface {
             exchange.close();
 
             for (JsonNode alert : reqBody.get("alerts")) {
-                String name = alert.get("labels").get("pod").asText();
-                Ip4Address dip = Ip4Address.valueOf(alert.get("labels").get("pod_ip").asText());
-                Ip4Address vip = null;
-                for (Map.Entry<Ip4Address, HashMap<Ip4Address, UpfInstance>> entry : upfIpToUpfInstance.entrySet()) {
-                    if (entry.getValue().containsKey(dip)) {
-                        vip = entry.getKey();
-                        break;
+                try {
+                    String name = alert.get("labels").get("pod").asText();
+                    Ip4Address dip = Ip4Address.valueOf(alert.get("labels").get("pod_ip").asText());
+                    if ("resolved".equals(alert.path("status").asText())) {
+                        alertQueue.resolve(dip);
+                        continue;
                     }
+                    double threshold = Double.valueOf(alert.get("annotations").get("threshold").asText()).doubleValue();
+                    alertQueue.offer(name, dip, threshold);
+                } catch (Exception e) {
+                    log.info(e.toString());
                 }
-                double threshold = Double.valueOf(alert.get("annotations").get("threshold").asText()).doubleValue();
-                overloadHandler(name, vip, dip, threshold);
             }
         }
     }
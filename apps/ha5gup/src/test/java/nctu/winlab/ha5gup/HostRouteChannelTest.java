@@ -0,0 +1,83 @@
+package nctu.winlab.ha5gup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// The seq/ack line protocol of HostRouteChannel against a local shell running AGENT_LOOP.
+public class HostRouteChannelTest {
+    private HostRouteChannel channel;
+
+    @After
+    public void tearDown() {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void pipelinedCommandsAreAckedBySeq() throws Exception {
+        channel = HostRouteChannel.local("test");
+        CompletableFuture<String> slow = channel.submit("sleep 0.2; echo slow");
+        CompletableFuture<String> multiline = channel.submit("printf 'two\\nlines'");
+        CompletableFuture<String> fast = channel.submit("echo fast");
+        // Commands run in order, so the later ones wait for the slow one.
+        assertFalse(fast.isDone());
+
+        assertEquals("slow", slow.get(5, TimeUnit.SECONDS));
+        assertEquals("two lines", multiline.get(5, TimeUnit.SECONDS));
+        assertEquals("fast", fast.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void nonZeroExitStatusFailsTheCommand() throws Exception {
+        channel = HostRouteChannel.local("test");
+        Throwable cause = failure(channel.submit("echo oops; exit 3"));
+        assertTrue(cause.getMessage(), cause.getMessage().endsWith("command exits with 3, oops"));
+        assertEquals("ok", channel.submit("echo ok").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void commandWithoutAckTimesOut() throws Exception {
+        channel = HostRouteChannel.local("test", 300);
+        assertTrue(failure(channel.submit("sleep 1; echo late")) instanceof TimeoutException);
+
+        // The late ack is dropped, and the channel keeps working.
+        Thread.sleep(1000);
+        assertEquals("ok", channel.submit("echo ok").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shellIsStartedAgainAfterItExits() throws Exception {
+        channel = HostRouteChannel.local("test");
+        // Commands run in a child of the shell, so $PPID is the shell itself.
+        String shell = channel.submit("echo $PPID").get(5, TimeUnit.SECONDS);
+
+        Throwable cause = failure(channel.submit("kill $PPID"));
+        assertTrue(cause.getMessage(), cause.getMessage().endsWith("channel is closed"));
+
+        String restartedShell = channel.submit("echo $PPID").get(5, TimeUnit.SECONDS);
+        assertNotEquals(shell, restartedShell);
+        assertEquals("ok", channel.submit("echo ok").get(5, TimeUnit.SECONDS));
+    }
+
+    private static Throwable failure(CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("The command succeeded");
+        return null;
+    }
+}
@@ -0,0 +1,225 @@
+package nctu.winlab.ha5gup;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.Empty;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.onlab.packet.Ip4Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.FSeid;
+import nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.FTeid;
+import nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatch;
+import nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionBatchAck;
+import nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.PfcpSessionOperation;
+import nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpdatePfcpSessionRequest;
+
+// Session requests per second through LoadBalancerAgentService, from decoding to the response, with a controller
+// whose handlers complete right away. So it measures the ingest path, i.e. decoding, RequestQueue and responding,
+// without flow rule writes. Each JMH thread is a sender, with one call or one batch stream in flight.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class LoadBalancerAgentServiceBenchmark {
+    private static final int BATCH_SIZE = 64;
+    private static final int REQUESTS_PER_SENDER = 1024;
+
+    @Param({"1", "4"})
+    public int queueThreads;
+
+    private RequestQueue sessionRequests;
+    private RequestQueue upfRequests;
+    private LoadBalancerAgentService service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessionRequests = new RequestQueue("session", queueThreads, 1024);
+        upfRequests = new RequestQueue("upf", 1, 16);
+        service = new LoadBalancerAgentService(new StubUpflbControl(), sessionRequests, upfRequests);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sessionRequests.shutdown();
+        upfRequests.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Sender {
+        private UpdatePfcpSessionRequest[] requests;
+        private PfcpSessionBatch[] batches;
+        private int next;
+        private long batchId;
+        private StreamObserver<PfcpSessionBatch> stream;
+        private volatile CompletableFuture<PfcpSessionBatchAck> ack;
+
+        @Setup(Level.Trial)
+        public void setUp(LoadBalancerAgentServiceBenchmark benchmark) {
+            // Each sender has its own SEIDs, so the requests of different senders never update the same session.
+            long seidBase = (long) System.identityHashCode(this) << 20;
+            requests = new UpdatePfcpSessionRequest[REQUESTS_PER_SENDER];
+            for (int i = 0; i < REQUESTS_PER_SENDER; i++) {
+                requests[i] = request(seidBase + i);
+            }
+            batches = new PfcpSessionBatch[REQUESTS_PER_SENDER / BATCH_SIZE];
+            for (int i = 0; i < batches.length; i++) {
+                PfcpSessionBatch.Builder batch = PfcpSessionBatch.newBuilder();
+                for (int j = 0; j < BATCH_SIZE; j++) {
+                    batch.addOperations(PfcpSessionOperation.newBuilder().setUpdate(requests[i * BATCH_SIZE + j]));
+                }
+                batches[i] = batch.build();
+            }
+            stream = benchmark.service.updatePfcpSessions(new AckObserver(this));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            stream.onCompleted();
+        }
+
+        private static UpdatePfcpSessionRequest request(long seid) {
+            int ue = (int) (seid & 0xffff);
+            return UpdatePfcpSessionRequest.newBuilder()
+                    .setFseid(FSeid.newBuilder().setSeid(seid).setIpv4("10.0.0.1"))
+                    .addFteids(FTeid.newBuilder().setTeid((int) seid).setIpv4("10.0.0.1"))
+                    .setUeIp(String.format("60.60.%d.%d", ue >> 8, ue & 0xff))
+                    .build();
+        }
+    }
+
+    @Benchmark
+    public void updatePfcpSession(Sender sender) {
+        CompletableFuture<Void> response = new CompletableFuture<Void>();
+        service.updatePfcpSession(sender.requests[sender.next++ % REQUESTS_PER_SENDER], new StreamObserver<Empty>() {
+            @Override
+            public void onNext(Empty value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                response.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                response.complete(null);
+            }
+        });
+        response.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public PfcpSessionBatchAck updatePfcpSessions(Sender sender) {
+        PfcpSessionBatch batch = sender.batches[sender.next++ % sender.batches.length];
+        sender.ack = new CompletableFuture<PfcpSessionBatchAck>();
+        sender.stream.onNext(batch.toBuilder().setBatchId(sender.batchId++).build());
+        return sender.ack.join();
+    }
+
+    // The handlers of the session requests complete right away, as if the flow rules were confirmed at once.
+    private static class StubUpflbControl extends UpflbControl {
+        @Override
+        protected CompletableFuture<Void> updatePfcpSessionHandler(nctu.winlab.ha5gup.FSeid fseid,
+                List<nctu.winlab.ha5gup.FTeid> fteids, Ip4Address ueIp) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        protected CompletableFuture<Void> pfcpSessionBatchHandler(List<nctu.winlab.ha5gup.PfcpSessionOperation> operations) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // The server side of a batch stream, which only hands the acks over to the sender.
+    private static class AckObserver extends ServerCallStreamObserver<PfcpSessionBatchAck> {
+        private final Sender sender;
+
+        AckObserver(Sender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public void onNext(PfcpSessionBatchAck value) {
+            sender.ack.complete(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            sender.ack.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+        }
+
+        @Override
+        public void setCompression(String compression) {
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void disableAutoRequest() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+                .include(LoadBalancerAgentServiceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
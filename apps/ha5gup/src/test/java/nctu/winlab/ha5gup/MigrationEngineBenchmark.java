@@ -0,0 +1,106 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.onlab.packet.Ip4Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Drains a group of session migrations through MigrationEngine. A migration holds its thread for a while, like
+// the session locks of a real one, and is then confirmed asynchronously, like its routes and flow rules.
+// Reports migrations per second for the limits of the engine.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MigrationEngineBenchmark {
+    private static final int MIGRATIONS = 1000;
+    private static final int TARGETS = 8;
+
+    @Param({"8", "32", "128"})
+    public int maxConcurrent;
+
+    @Param({"4", "16"})
+    public int maxConcurrentPerUpf;
+
+    // Time a migration blocks its thread, and time until its flow rules are confirmed.
+    @Param({"200"})
+    public int blockMicros;
+
+    @Param({"2000"})
+    public int confirmMicros;
+
+    private MigrationEngine engine;
+    private ScheduledExecutorService confirmer;
+    private List<Ip4Address> targets;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = new MigrationEngine(maxConcurrent, maxConcurrentPerUpf);
+        confirmer = Executors.newScheduledThreadPool(2);
+        targets = new ArrayList<Ip4Address>();
+        for (int i = 0; i < TARGETS; i++) {
+            targets.add(Ip4Address.valueOf(0x0a000001 + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+        confirmer.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MIGRATIONS)
+    public void drain() {
+        ArrayList<CompletableFuture<Void>> groups = new ArrayList<CompletableFuture<Void>>(TARGETS);
+        for (Ip4Address target : targets) {
+            ArrayList<Supplier<CompletableFuture<Void>>> migrations = new ArrayList<Supplier<CompletableFuture<Void>>>();
+            for (int i = 0; i < MIGRATIONS / TARGETS; i++) {
+                migrations.add(this::migrate);
+            }
+            groups.add(engine.submitAll("drain", target, migrations));
+        }
+        CompletableFuture.allOf(groups.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private CompletableFuture<Void> migrate() {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(blockMicros);
+        while (System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        CompletableFuture<Void> confirmation = new CompletableFuture<Void>();
+        confirmer.schedule(() -> confirmation.complete(null), confirmMicros, TimeUnit.MICROSECONDS);
+        return confirmation;
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+                .include(MigrationEngineBenchmark.class.getSimpleName()).build()).run();
+    }
+}
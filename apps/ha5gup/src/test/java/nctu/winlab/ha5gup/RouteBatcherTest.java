@@ -0,0 +1,106 @@
+package nctu.winlab.ha5gup;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Per-route results of RouteBatcher, with the batches run by a local shell like HostRouteChannel.local(). The
+// shell finds a stand-in for "ip -force -batch -" first on its PATH, which fails the lines of routes to
+// 192.0.2.0/24 as ip does, and never answers lines of routes to 198.51.100.0/24.
+public class RouteBatcherTest {
+    private static final String FAKE_IP = "#!/bin/sh\n"
+            + "n=0\n"
+            + "while IFS= read -r line; do\n"
+            + "  n=$((n + 1))\n"
+            + "  case \"$line\" in\n"
+            + "    *192.0.2.*) echo 'RTNETLINK answers: File exists'; echo \"Command failed -:$n\" ;;\n"
+            + "    *198.51.100.*) sleep 2 ;;\n"
+            + "  esac\n"
+            + "done\n";
+    private static final long COMMAND_TIMEOUT_MILLIS = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HostRouteChannel channel;
+    private RouteBatcher batcher;
+
+    @Before
+    public void setUp() throws Exception {
+        File bin = folder.newFolder("bin");
+        File ip = new File(bin, "ip");
+        Files.write(ip.toPath(), FAKE_IP.getBytes(StandardCharsets.UTF_8));
+        assertTrue(ip.setExecutable(true));
+
+        ProcessBuilder shell = new ProcessBuilder("sh", "-c", HostRouteChannel.AGENT_LOOP);
+        shell.environment().put("PATH", bin.getPath() + File.pathSeparator + System.getenv("PATH"));
+        channel = new HostRouteChannel("test", shell::start, COMMAND_TIMEOUT_MILLIS);
+        // A long window, so the routes of a test go in one batch.
+        batcher = new RouteBatcher("test", channel::submit, 200, 64);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.shutdown();
+        channel.close();
+    }
+
+    @Test
+    public void failedLinesFailOnlyTheirRoutes() throws Exception {
+        CompletableFuture<Void> first = batcher.submit("ip route add 10.60.0.1/32 proto static dev veth0");
+        CompletableFuture<Void> second = batcher.submit("ip route add 192.0.2.1/32 proto static dev veth0");
+        CompletableFuture<Void> third = batcher.submit("ip route add 10.60.0.2/32 proto static dev veth0");
+        CompletableFuture<Void> fourth = batcher.submit("ip route add 192.0.2.2/32 proto static dev veth0");
+
+        assertNull(first.get(5, TimeUnit.SECONDS));
+        assertTrue(failure(second).getMessage().endsWith("ip route add 192.0.2.1/32 proto static dev veth0 failed, RTNETLINK answers: File exists"));
+        assertNull(third.get(5, TimeUnit.SECONDS));
+        assertTrue(failure(fourth).getMessage().endsWith("ip route add 192.0.2.2/32 proto static dev veth0 failed, RTNETLINK answers: File exists"));
+        assertTrue(batcher.toString(), batcher.toString().startsWith("1 batches, 4 routes (2 failed)"));
+    }
+
+    @Test
+    public void commandsWhichCantBeBatchedAreRejected() throws Exception {
+        assertTrue(failure(batcher.submit("ip route add 10.60.0.1/32 dev 'veth0'")) instanceof IllegalArgumentException);
+        assertTrue(failure(batcher.submit("ip route add 10.60.0.1/32 dev veth0\nip route flush all")) instanceof IllegalArgumentException);
+        assertTrue(failure(batcher.submit("route add 10.60.0.1/32 dev veth0")) instanceof IllegalArgumentException);
+        // Nothing reaches the channel.
+        batcher.submit("ip route add 10.60.0.2/32 dev veth0").get(5, TimeUnit.SECONDS);
+        assertTrue(batcher.toString(), batcher.toString().startsWith("1 batches, 1 routes (0 failed)"));
+    }
+
+    @Test
+    public void batchWithoutAckFailsAllItsRoutes() throws Exception {
+        CompletableFuture<Void> first = batcher.submit("ip route add 10.60.0.1/32 dev veth0");
+        CompletableFuture<Void> second = batcher.submit("ip route add 198.51.100.1/32 dev veth0");
+
+        assertTrue(failure(first) instanceof TimeoutException);
+        assertTrue(failure(second) instanceof TimeoutException);
+        assertTrue(batcher.toString(), batcher.toString().startsWith("1 batches, 2 routes (2 failed)"));
+    }
+
+    private static Throwable failure(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("The route succeeded");
+        return null;
+    }
+}
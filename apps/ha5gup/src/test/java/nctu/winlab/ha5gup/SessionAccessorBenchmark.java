@@ -0,0 +1,135 @@
+package nctu.winlab.ha5gup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.flow.FlowRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Walks the sessions of a UPF instance, and the F-TEIDs of each session, as the overload and drain paths do.
+// The copying* benchmarks use the accessors UpfInstance.pfcpSessions() and PfcpSession.fteidToDnatRules() used to
+// have, which copied a HashMap under the monitor of the object on every call. The others use the current ones,
+// i.e. the slot tables of UpfInstance and the endpoints of PfcpSession. Run with -prof gc for the allocation
+// per walk.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionAccessorBenchmark {
+    private static final int SLOTS_PER_UPF = 4;
+
+    @Param({"10000", "100000"})
+    public int sessionCount;
+
+    private UpfInstance upf;
+    private CopyingUpfInstance copyingUpf;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Ip4Address upfVip = Ip4Address.valueOf("10.0.0.1");
+        Ip4Address upfDip = Ip4Address.valueOf("10.0.0.2");
+        upf = new UpfInstance("upf", upfDip, 1L, null, null, null, null);
+        for (int i = 0; i < SLOTS_PER_UPF; i++) {
+            upf.addSlot(new UpfSlot(i, upfDip, null));
+        }
+        copyingUpf = new CopyingUpfInstance();
+        for (int i = 0; i < sessionCount; i++) {
+            PfcpSession session = new PfcpSession(new FSeid(i + 1, upfVip), upfDip, Ip4Address.valueOf(0x0a3c0000 + i));
+            FTeid fteid = new FTeid(i + 1, upfVip);
+            session.addEndpoint(fteid, null);
+            upf.slots().get(i % SLOTS_PER_UPF).addPfcpSession(session);
+            copyingUpf.add(new CopyingPfcpSession(session, fteid));
+        }
+    }
+
+    @Benchmark
+    public double copyingSessions() {
+        double throughput = 0;
+        for (CopyingPfcpSession session : copyingUpf.pfcpSessions().values()) {
+            throughput += session.session.throughput();
+        }
+        return throughput;
+    }
+
+    @Benchmark
+    public double sessions() {
+        double throughput = 0;
+        for (PfcpSession session : upf.pfcpSessions()) {
+            throughput += session.throughput();
+        }
+        return throughput;
+    }
+
+    @Benchmark
+    public void copyingSessionsAndEndpoints(Blackhole blackhole) {
+        for (CopyingPfcpSession session : copyingUpf.pfcpSessions().values()) {
+            for (FTeid fteid : session.fteidToDnatRules().keySet()) {
+                blackhole.consume(fteid);
+            }
+        }
+    }
+
+    @Benchmark
+    public void sessionsAndEndpoints(Blackhole blackhole) {
+        for (PfcpSession session : upf.pfcpSessions()) {
+            for (int i = 0; i < session.endpointCount(); i++) {
+                blackhole.consume(session.endpoint(i));
+            }
+        }
+    }
+
+    // The session map of UpfInstance and its accessor, as they used to be.
+    private static class CopyingUpfInstance {
+        private final HashMap<FSeid, CopyingPfcpSession> pfcpSessions = new HashMap<FSeid, CopyingPfcpSession>();
+
+        synchronized void add(CopyingPfcpSession session) {
+            pfcpSessions.put(session.session.fseid(), session);
+        }
+
+        synchronized Map<FSeid, CopyingPfcpSession> pfcpSessions() {
+            return Collections.unmodifiableMap(new HashMap<FSeid, CopyingPfcpSession>(pfcpSessions));
+        }
+    }
+
+    // The F-TEID map of PfcpSession and its accessor, as they used to be.
+    private static class CopyingPfcpSession {
+        private final PfcpSession session;
+        private final HashMap<FTeid, FlowRule> fteidToDnatRules = new HashMap<FTeid, FlowRule>();
+
+        CopyingPfcpSession(PfcpSession session, FTeid fteid) {
+            this.session = session;
+            fteidToDnatRules.put(fteid, null);
+        }
+
+        synchronized Map<FTeid, FlowRule> fteidToDnatRules() {
+            return Collections.unmodifiableMap(new HashMap<FTeid, FlowRule>(fteidToDnatRules));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+                .include(SessionAccessorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
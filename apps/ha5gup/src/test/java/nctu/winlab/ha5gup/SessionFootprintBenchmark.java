@@ -0,0 +1,82 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.onlab.packet.Ip4Address;
+
+// Heap retained per PFCP session at 1M sessions, measured as the growth of the used heap after full GCs, so run
+// it alone, e.g. with -Xmx4g. Sessions have one F-TEID and a UE IP, and are spread over the slots of 16 UPF
+// instances. Reports the sessions themselves, PfcpSessionStore, the slot tables, and for comparison the two
+// ConcurrentHashMap<FSeid, PfcpSession> which UpfInstance and UpfSlot used to keep per session.
+// The per-session maps of FlowRuleThroughputCollector are not included.
+public class SessionFootprintBenchmark {
+    private static final int UPFS = 16;
+    private static final int SLOTS_PER_UPF = 4;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Ip4Address upfVip = Ip4Address.valueOf("10.0.0.1");
+        // The DIP of a session is the one of its UPF instance, so it is shared.
+        Ip4Address[] upfDips = new Ip4Address[UPFS];
+        for (int i = 0; i < UPFS; i++) {
+            upfDips[i] = Ip4Address.valueOf(0x0a000002 + i);
+        }
+
+        long base = usedHeap();
+        ArrayList<PfcpSession> sessions = new ArrayList<PfcpSession>(count);
+        long listBytes = usedHeap() - base;
+        for (int i = 0; i < count; i++) {
+            PfcpSession session = new PfcpSession(new FSeid(i + 1, upfVip), upfDips[i % UPFS], Ip4Address.valueOf(0x0a3c0000 + i));
+            session.addEndpoint(new FTeid(i + 1, upfVip), null);
+            sessions.add(session);
+        }
+        long sessionBytes = usedHeap() - base - listBytes;
+
+        long before = usedHeap();
+        PfcpSessionStore store = new PfcpSessionStore();
+        for (PfcpSession session : sessions) {
+            store.put(session);
+        }
+        long storeBytes = usedHeap() - before;
+
+        before = usedHeap();
+        List<UpfSlot> slots = new ArrayList<UpfSlot>();
+        for (int i = 0; i < UPFS * SLOTS_PER_UPF; i++) {
+            slots.add(new UpfSlot(i, upfDips[i % UPFS], null));
+        }
+        for (int i = 0; i < count; i++) {
+            slots.get(i % slots.size()).addPfcpSession(sessions.get(i));
+        }
+        long slotBytes = usedHeap() - before;
+
+        before = usedHeap();
+        List<ConcurrentHashMap<FSeid, PfcpSession>> maps = new ArrayList<ConcurrentHashMap<FSeid, PfcpSession>>();
+        for (int i = 0; i < UPFS + UPFS * SLOTS_PER_UPF; i++) {
+            maps.add(new ConcurrentHashMap<FSeid, PfcpSession>());
+        }
+        for (int i = 0; i < count; i++) {
+            PfcpSession session = sessions.get(i);
+            maps.get(i % UPFS).put(session.fseid(), session);
+            maps.get(UPFS + i % (UPFS * SLOTS_PER_UPF)).put(session.fseid(), session);
+        }
+        long mapBytes = usedHeap() - before;
+
+        System.out.printf("%d sessions, bytes per session:%n", count);
+        System.out.printf("  PfcpSession, FSeid and endpoints: %.1f%n", (double) sessionBytes / count);
+        System.out.printf("  PfcpSessionStore: %.1f (%s)%n", (double) storeBytes / count, store);
+        System.out.printf("  UpfSlot tables: %.1f%n", (double) slotBytes / count);
+        System.out.printf("  UpfInstance and UpfSlot maps of the previous layout: %.1f%n", (double) mapBytes / count);
+        // Keep everything reachable until it is measured.
+        System.out.println(sessions.size() + store.size() + slots.size() + maps.size() > 0 ? "" : "-");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,132 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.packet.Ip4Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nctu.winlab.ha5gup.SessionSubsetSelector.SessionSubsetStrategy;
+
+// Selects the sessions to migrate off an overloaded UPF instance, for each strategy, on synthetic throughput
+// distributions. JMH reports the time of a selection; main() also prints what each strategy selects, i.e. the
+// number of sessions, their migration cost and the throughput shed beyond the excess.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionSubsetSelectorBenchmark {
+    public enum Distribution {
+        // Throughput uniform in (0, 2).
+        UNIFORM,
+        // Pareto with shape 1.2, i.e. a few heavy sessions and many light ones.
+        HEAVY_TAILED,
+        // 90% light sessions and 10% sessions 50 times heavier.
+        BIMODAL;
+    }
+
+    @Param({"SESSION_SUBSET_STRATEGY_GREEDY_SMALLEST", "SESSION_SUBSET_STRATEGY_FEWEST_SESSIONS",
+            "SESSION_SUBSET_STRATEGY_MIN_MIGRATION_COST"})
+    public SessionSubsetStrategy strategy;
+
+    @Param({"UNIFORM", "HEAVY_TAILED", "BIMODAL"})
+    public Distribution distribution;
+
+    @Param({"100", "1000", "5000"})
+    public int sessionCount;
+
+    // Excess as a fraction of the throughput of the UPF instance.
+    @Param({"0.1"})
+    public double excessRatio;
+
+    private SessionSubsetSelector selector;
+    private List<PfcpSession> sessions;
+    private double excess;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        selector = new SessionSubsetSelector(strategy);
+        sessions = sessions(distribution, sessionCount, 1);
+        excess = totalThroughput(sessions) * excessRatio;
+    }
+
+    @Benchmark
+    public List<PfcpSession> select() {
+        return selector.select(sessions, excess);
+    }
+
+    // Sessions of 1 or 2 F-TEIDs, so the migration cost differs between sessions.
+    static List<PfcpSession> sessions(Distribution distribution, int count, long seed) {
+        Random random = new Random(seed);
+        Ip4Address upfDip = Ip4Address.valueOf("10.0.0.1");
+        ArrayList<PfcpSession> sessions = new ArrayList<PfcpSession>(count);
+        for (int i = 0; i < count; i++) {
+            PfcpSession session = new PfcpSession(new FSeid(i + 1, upfDip), upfDip, Ip4Address.valueOf(0x0a3c0000 + i));
+            int endpoints = random.nextInt(4) == 0 ? 2 : 1;
+            for (int j = 0; j < endpoints; j++) {
+                session.addEndpoint(new FTeid(2 * i + j + 1, upfDip), null);
+            }
+            session.updateThroughput(throughput(distribution, random));
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    private static double throughput(Distribution distribution, Random random) {
+        switch (distribution) {
+            case HEAVY_TAILED:
+                return 0.1 / Math.pow(1 - random.nextDouble(), 1 / 1.2);
+            case BIMODAL:
+                return random.nextInt(10) == 0 ? 50 * random.nextDouble() : random.nextDouble();
+            case UNIFORM:
+            default:
+                return 2 * random.nextDouble();
+        }
+    }
+
+    private static double totalThroughput(List<PfcpSession> sessions) {
+        double total = 0;
+        for (PfcpSession session : sessions) {
+            total += session.throughput();
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        for (Distribution distribution : Distribution.values()) {
+            List<PfcpSession> sessions = sessions(distribution, 1000, 1);
+            double excess = totalThroughput(sessions) * 0.1;
+            for (SessionSubsetStrategy strategy : SessionSubsetStrategy.values()) {
+                List<PfcpSession> subset = new SessionSubsetSelector(strategy).select(sessions, excess);
+                int cost = 0;
+                for (PfcpSession session : subset) {
+                    cost += session.migrationCost();
+                }
+                System.out.printf("%s %s: %d sessions, migration cost %d, %.2f shed beyond the excess of %.2f%n",
+                        distribution, strategy, subset.size(), cost, totalThroughput(subset) - excess, excess);
+            }
+        }
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+                .include(SessionSubsetSelectorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
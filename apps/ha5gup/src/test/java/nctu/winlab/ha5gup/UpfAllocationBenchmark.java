@@ -0,0 +1,115 @@
+package nctu.winlab.ha5gup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nctu.winlab.ha5gup.UpfSelector.UpfAllocation;
+import nctu.winlab.ha5gup.UpfSelector.UpfSelectorCriteria;
+
+// Places the sessions of an overloaded UPF instance on the other UPF instances of its service with the
+// best-fit-decreasing packing of UpfSelector.allocateUpfsForSessions(), without querying the loads. The sessions
+// need fillRatio of the room left on the UPF instances, and have heavy-tailed throughput. main() also prints the
+// demand left unplaced.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpfAllocationBenchmark {
+    private static final double CAPACITY_GBPS = 10;
+    private static final double UTILIZATION_THRESHOLD = 0.8;
+
+    @Param({"1000", "5000", "20000"})
+    public int sessionCount;
+
+    @Param({"12", "48"})
+    public int upfCount;
+
+    @Param({"0.9"})
+    public double fillRatio;
+
+    private UpfSelector selector;
+    private List<UpfInstance> upfs;
+    private HashMap<Ip4Address, Double> loads;
+    private List<PfcpSession> sessions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        selector = new UpfSelector(UpfSelectorCriteria.UPF_SELECTOR_CRITERIA_SWITCH_THROUGHPUT, new UpfRegistry(), null,
+                TimeUnit.HOURS.toMillis(1));
+        Random random = new Random(1);
+        upfs = new ArrayList<UpfInstance>();
+        loads = new HashMap<Ip4Address, Double>();
+        double room = 0;
+        for (int i = 0; i < upfCount; i++) {
+            Ip4Address dip = Ip4Address.valueOf(0x0a010001 + i);
+            UpfInstance upf = new UpfInstance("upf-" + i, dip, 1L, MacAddress.ZERO, Ip4Address.valueOf("192.168.0.1"), null, null);
+            upf.setCapacity(CAPACITY_GBPS);
+            double load = CAPACITY_GBPS * UTILIZATION_THRESHOLD * random.nextDouble();
+            loads.put(dip, load);
+            room += CAPACITY_GBPS * UTILIZATION_THRESHOLD - load;
+            upfs.add(upf);
+        }
+        sessions = SessionSubsetSelectorBenchmark.sessions(SessionSubsetSelectorBenchmark.Distribution.HEAVY_TAILED,
+                sessionCount, 1);
+        double demand = 0;
+        for (PfcpSession session : sessions) {
+            demand += session.throughput();
+        }
+        for (PfcpSession session : sessions) {
+            session.updateThroughput(session.throughput() * room * fillRatio / demand);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        selector.shutdown();
+    }
+
+    @Benchmark
+    public UpfAllocation allocate() {
+        return selector.allocate(upfs, loads, sessions, null, UTILIZATION_THRESHOLD);
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        for (int upfCount : new int[] {12, 48}) {
+            UpfAllocationBenchmark benchmark = new UpfAllocationBenchmark();
+            benchmark.sessionCount = 5000;
+            benchmark.upfCount = upfCount;
+            benchmark.fillRatio = 0.9;
+            benchmark.setUp();
+            UpfAllocation allocation = benchmark.allocate();
+            System.out.printf("%d sessions on %d UPF instances: %d placed, %d unplaced (%.2f Gbps)%n",
+                    benchmark.sessionCount, upfCount, benchmark.sessionCount - allocation.unplaced.size(),
+                    allocation.unplaced.size(), allocation.unplacedThroughput());
+            benchmark.tearDown();
+        }
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+                .include(UpfAllocationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
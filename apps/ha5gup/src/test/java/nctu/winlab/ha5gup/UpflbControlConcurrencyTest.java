@@ -0,0 +1,386 @@
+package nctu.winlab.ha5gup;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.ChassisId;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import org.osgi.service.component.ComponentContext;
+
+import nctu.winlab.ha5gup.UpfSelector.UpfSelectorCriteria;
+
+import static nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.InitializeRequest.CoreNetwork.CORE_NETWORK_FREE5GC_VALUE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Session setup and deletion against the drain of a terminated UPF instance. The slots of the drained instance
+// wait for their routes, which the stub host-route-agent acks after ROUTE_DELAY_MILLIS, or for their turn in the
+// MigrationEngine. The flow rules are confirmed by a stub switch as soon as they are written.
+public class UpflbControlConcurrencyTest {
+    private static final long ROUTE_DELAY_MILLIS = 2000;
+    private static final int DRAINED_SESSIONS = 1000;
+    private static final int NEW_SESSIONS = 200;
+    private static final int DELETED_SESSIONS = 50;
+    private static final int SENDERS = 4;
+    private static final int UE_IP_BLOCK_PREFIX_LENGTH = 28;
+    private static final int MAX_MIGRATIONS = 32;
+    private static final int MAX_MIGRATIONS_PER_UPF = 8;
+
+    private static final Ip4Address UPF_VIP = Ip4Address.valueOf("10.0.0.1");
+    private static final Ip4Address DRAINED_DIP = Ip4Address.valueOf("10.0.0.2");
+    private static final Ip4Address TARGET_DIP = Ip4Address.valueOf("10.0.0.3");
+    private static final Ip4Address DRAINED_NODE = Ip4Address.valueOf("192.168.0.1");
+    private static final Ip4Address TARGET_NODE = Ip4Address.valueOf("192.168.0.2");
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:test");
+
+    private UpflbControl control;
+    private StubFlowRuleService flowRuleService;
+    private StubK8sManager k8sManager;
+    private P4Manager p4Manager;
+    private MigrationEngine migrationEngine;
+    private FlowRuleThroughputCollector flowRuleThroughputCollector;
+    private ExecutorService senders;
+
+    @Before
+    public void setUp() {
+        DefaultApplicationId appId = new DefaultApplicationId(1, "nctu.winlab.ha5gup");
+        Device device = new DefaultDevice(ProviderId.NONE, DEVICE_ID, Device.Type.SWITCH, "", "", "", "", new ChassisId());
+        flowRuleService = new StubFlowRuleService();
+        k8sManager = new StubK8sManager();
+        p4Manager = new P4Manager(appId, device, flowRuleService, MacAddress.valueOf("77:88:99:00:00:01"));
+        migrationEngine = new MigrationEngine(MAX_MIGRATIONS, MAX_MIGRATIONS_PER_UPF);
+        flowRuleThroughputCollector = new FlowRuleThroughputCollector(appId, flowRuleService, 1000, 5000);
+        senders = Executors.newFixedThreadPool(SENDERS + 1);
+
+        control = new UpflbControl(appId, flowRuleService, k8sManager, p4Manager, flowRuleThroughputCollector, migrationEngine,
+                UpfSelectorCriteria.UPF_SELECTOR_CRITERIA_SWITCH_THROUGHPUT);
+    }
+
+    // Initializes the UPF service with the component properties of a test, and adds the UPF instance to drain.
+    private void initialize(int ueIpBlockPrefixLength) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("ueIpBlockPrefixLength", String.valueOf(ueIpBlockPrefixLength));
+        properties.put("maxConcurrentMigrations", String.valueOf(MAX_MIGRATIONS));
+        properties.put("maxConcurrentMigrationsPerUpf", String.valueOf(MAX_MIGRATIONS_PER_UPF));
+        control.modified((ComponentContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ComponentContext.class},
+                (proxy, method, args) -> "getProperties".equals(method.getName()) ? properties : null));
+
+        control.initializeHandler(CORE_NETWORK_FREE5GC_VALUE, Collections.singletonList(
+                nctu.winlab.ha5gup.proto.LoadBalancerAgentOuterClass.UpfService.newBuilder()
+                        .setIpv4(UPF_VIP.toString()).setIsPsa(true).setDevId(DEVICE_ID.toString()).build()));
+        control.addUpfHandler("upf-drained", DRAINED_DIP, UPF_VIP, DRAINED_NODE, 10);
+    }
+
+    @After
+    public void tearDown() {
+        senders.shutdownNow();
+        control.upfSelector().shutdown();
+        migrationEngine.shutdown();
+        flowRuleThroughputCollector.shutdownCollector();
+        p4Manager.shutdown();
+        k8sManager.shutdown();
+    }
+
+    @Test
+    public void sessionSetupIsNotBlockedByDrain() throws Exception {
+        initialize(UE_IP_BLOCK_PREFIX_LENGTH);
+        ArrayList<CompletableFuture<Void>> setups = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 1; i <= DRAINED_SESSIONS; i++) {
+            setups.add(setUpSession(i));
+        }
+        CompletableFuture.allOf(setups.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        k8sManager.awaitRoutes(0);
+        control.addUpfHandler("upf-target", TARGET_DIP, UPF_VIP, TARGET_NODE, 10);
+
+        CompletableFuture<Void> drain = CompletableFuture.runAsync(() -> control.deleteUpfHandler(UPF_VIP, DRAINED_DIP), senders);
+        // The drained slots are waiting for their routes.
+        k8sManager.awaitRoutes(1);
+
+        // Each sender sets up new sessions and deletes some of the drained ones. The drained sessions span nearly
+        // all session stripes, so the calls contend with the drain.
+        AtomicLong maxCallNanos = new AtomicLong();
+        List<CompletableFuture<Void>> completions = new CopyOnWriteArrayList<CompletableFuture<Void>>();
+        ArrayList<CompletableFuture<Void>> sendersDone = new ArrayList<CompletableFuture<Void>>();
+        for (int s = 0; s < SENDERS; s++) {
+            int sender = s;
+            sendersDone.add(CompletableFuture.runAsync(() -> {
+                for (int i = sender; i < NEW_SESSIONS + DELETED_SESSIONS; i += SENDERS) {
+                    long start = System.nanoTime();
+                    if (i < NEW_SESSIONS) {
+                        completions.add(setUpSession(DRAINED_SESSIONS + 1 + i));
+                    } else {
+                        completions.add(control.deletePfcpSessionHandler(new FSeid(i - NEW_SESSIONS + 1, UPF_VIP)));
+                    }
+                    maxCallNanos.accumulateAndGet(System.nanoTime() - start, Math::max);
+                }
+            }, senders));
+        }
+        CompletableFuture.allOf(sendersDone.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        assertFalse("The drain is over before the senders are done", drain.isDone());
+        assertTrue(String.format("A session request waited %d ms for the drain", TimeUnit.NANOSECONDS.toMillis(maxCallNanos.get())),
+                maxCallNanos.get() < TimeUnit.MILLISECONDS.toNanos(ROUTE_DELAY_MILLIS / 4));
+
+        drain.get(10 * ROUTE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(Collections.singletonList("upf-drained: pkill upfd"), k8sManager.podCommands);
+        CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        PfcpSessionStore store = control.pfcpSessionStore();
+        assertEquals(DRAINED_SESSIONS + NEW_SESSIONS - DELETED_SESSIONS, store.size());
+        for (int i = 1; i <= DRAINED_SESSIONS + NEW_SESSIONS; i++) {
+            PfcpSession session = store.get(new FSeid(i, UPF_VIP));
+            FlowId n6DlRoutingRule = p4Manager.buildIpRouteTableRule(ueIp(i), k8sManager.getNodePortNumber(TARGET_NODE),
+                    k8sManager.getNodeMacAddress(TARGET_NODE)).id();
+            if (i <= DELETED_SESSIONS) {
+                // The drain skips the rules of a session deleted while its slot waits for the routes.
+                assertNull(session);
+                assertFalse("N6 routing rule of deleted session " + i, flowRuleService.installed(n6DlRoutingRule));
+            } else {
+                assertEquals(TARGET_DIP, session.upfDip());
+                if (i <= DRAINED_SESSIONS) {
+                    assertTrue("N6 routing rule of drained session " + i, flowRuleService.installed(n6DlRoutingRule));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sessionIsDeletedWhileItsSlotWaitsForTheDrain() throws Exception {
+        // Without UE IP blocks, each session has a /32 route of its own.
+        initialize(0);
+        ArrayList<CompletableFuture<Void>> setups = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 1; i <= 16; i++) {
+            setups.add(setUpSession(i));
+        }
+        CompletableFuture.allOf(setups.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        k8sManager.awaitRoutes(0);
+        control.addUpfHandler("upf-target", TARGET_DIP, UPF_VIP, TARGET_NODE, 10);
+
+        // Migrations towards the target are at their limit, so the drained slots stay queued.
+        CompletableFuture<Void> blocker = new CompletableFuture<Void>();
+        for (int i = 0; i < MAX_MIGRATIONS_PER_UPF; i++) {
+            migrationEngine.submit(TARGET_DIP, () -> blocker);
+        }
+        CompletableFuture<Void> drain = CompletableFuture.runAsync(() -> control.deleteUpfHandler(UPF_VIP, DRAINED_DIP), senders);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (migrationEngine.queueDepth() == 0) {
+            assertTrue("The drained slots aren't queued", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+
+        FlowId drainedRule = p4Manager.buildIpRouteTableRule(ueIp(1), k8sManager.getNodePortNumber(DRAINED_NODE),
+                k8sManager.getNodeMacAddress(DRAINED_NODE)).id();
+        assertTrue(flowRuleService.installed(drainedRule));
+        control.deletePfcpSessionHandler(new FSeid(1, UPF_VIP)).get(10, TimeUnit.SECONDS);
+        assertNull(control.pfcpSessionStore().get(new FSeid(1, UPF_VIP)));
+        // Removals are written without waiting for them.
+        flowRuleService.awaitRemoved(drainedRule);
+        assertTrue(k8sManager.routeCommands(DRAINED_NODE).contains(
+                String.format("ip route del %s/32 dev %s", ueIp(1), k8sManager.getHostIntfName(DRAINED_DIP, DRAINED_NODE))));
+
+        blocker.complete(null);
+        drain.get(10 * ROUTE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        assertFalse("N6 routing rule of the deleted session", flowRuleService.installed(p4Manager.buildIpRouteTableRule(ueIp(1),
+                k8sManager.getNodePortNumber(TARGET_NODE), k8sManager.getNodeMacAddress(TARGET_NODE)).id()));
+        for (int i = 2; i <= 16; i++) {
+            assertEquals(TARGET_DIP, control.pfcpSessionStore().get(new FSeid(i, UPF_VIP)).upfDip());
+        }
+    }
+
+    @Test
+    public void upfWithoutTargetIsKept() throws Exception {
+        initialize(UE_IP_BLOCK_PREFIX_LENGTH);
+        for (int i = 1; i <= 16; i++) {
+            setUpSession(i).get(10, TimeUnit.SECONDS);
+        }
+
+        // No UPF instance can take over the slots, so the drain fails and the UPF instance is left running.
+        control.deleteUpfHandler(UPF_VIP, DRAINED_DIP);
+        assertTrue(k8sManager.podCommands.isEmpty());
+        for (int i = 1; i <= 16; i++) {
+            assertEquals(DRAINED_DIP, control.pfcpSessionStore().get(new FSeid(i, UPF_VIP)).upfDip());
+        }
+        setUpSession(17).get(10, TimeUnit.SECONDS);
+        assertEquals(DRAINED_DIP, control.pfcpSessionStore().get(new FSeid(17, UPF_VIP)).upfDip());
+        control.deletePfcpSessionHandler(new FSeid(1, UPF_VIP)).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void failedRouteFailsOnlyItsOperation() throws Exception {
+        initialize(0);
+        k8sManager.failingRoutes.add(ueIp(2) + "/32");
+        List<PfcpSessionOperation> operations = new ArrayList<PfcpSessionOperation>();
+        for (int i = 1; i <= 3; i++) {
+            operations.add(PfcpSessionOperation.update(new FSeid(i, UPF_VIP), Collections.singletonList(new FTeid(i, UPF_VIP)), ueIp(i)));
+        }
+
+        CompletableFuture<Void> completion = control.pfcpSessionBatchHandler(operations);
+        // The batch is done once the routes are acked, not when the flow rules are confirmed.
+        assertFalse(completion.isDone());
+        completion.get(10 * ROUTE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(operations.get(0).isSuccess());
+        assertFalse(operations.get(1).isSuccess());
+        assertTrue(operations.get(1).error(), operations.get(1).error().startsWith("Route failed on " + DRAINED_NODE));
+        assertTrue(operations.get(2).isSuccess());
+    }
+
+    private CompletableFuture<Void> setUpSession(int i) {
+        return control.updatePfcpSessionHandler(new FSeid(i, UPF_VIP), Collections.singletonList(new FTeid(i, UPF_VIP)), ueIp(i));
+    }
+
+    private static Ip4Address ueIp(int i) {
+        return Ip4Address.valueOf(0x3c3c0000 + i);
+    }
+
+    // A switch which confirms every write at once, and keeps the ids of the installed rules.
+    private static class StubFlowRuleService extends FlowRuleServiceAdapter {
+        private final List<FlowRuleListener> listeners = new CopyOnWriteArrayList<FlowRuleListener>();
+        private final Set<FlowId> installedRules = ConcurrentHashMap.newKeySet();
+
+        boolean installed(FlowId id) {
+            return installedRules.contains(id);
+        }
+
+        void awaitRemoved(FlowId id) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (installed(id)) {
+                assertTrue("Flow rule " + id + " is still installed", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            ArrayList<FlowRule> added = new ArrayList<FlowRule>();
+            for (Set<FlowRuleOperation> stage : ops.stages()) {
+                for (FlowRuleOperation op : stage) {
+                    if (op.type() == FlowRuleOperation.Type.REMOVE) {
+                        installedRules.remove(op.rule().id());
+                    } else {
+                        installedRules.add(op.rule().id());
+                        added.add(op.rule());
+                    }
+                }
+            }
+            ops.callback().onSuccess(ops);
+            for (FlowRule rule : added) {
+                for (FlowRuleListener listener : listeners) {
+                    listener.event(new FlowRuleEvent(FlowRuleEvent.Type.RULE_ADDED, rule));
+                }
+            }
+        }
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntriesById(org.onosproject.core.ApplicationId id) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void addListener(FlowRuleListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(FlowRuleListener listener) {
+            listeners.remove(listener);
+        }
+    }
+
+    // Nodes without a cluster, whose host-route-agent acks every route after ROUTE_DELAY_MILLIS. Pod commands are
+    // only recorded.
+    private static class StubK8sManager extends K8sManager {
+        private final ScheduledExecutorService agent = Executors.newSingleThreadScheduledExecutor();
+        private final AtomicInteger routesInFlight = new AtomicInteger();
+        private final List<String> podCommands = new CopyOnWriteArrayList<String>();
+        private final Map<Ip4Address, List<String>> routeCommands = new ConcurrentHashMap<Ip4Address, List<String>>();
+        // Routes to these destinations are acked as failed.
+        private final Set<String> failingRoutes = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public Long getNodePortNumber(Ip4Address nodeIp) {
+            return (long) (nodeIp.toInt() & 0xff);
+        }
+
+        @Override
+        public MacAddress getNodeMacAddress(Ip4Address nodeIp) {
+            return MacAddress.ZERO;
+        }
+
+        @Override
+        public String getHostIntfName(Ip4Address upfDip, Ip4Address nodeIp) {
+            return "veth" + upfDip.toInt();
+        }
+
+        @Override
+        public String execPodCommand(String podName, String cmd) {
+            podCommands.add(podName + ": " + cmd);
+            return "";
+        }
+
+        @Override
+        public CompletableFuture<Void> submitRouteCommand(Ip4Address nodeIp, String cmd) {
+            routeCommands(nodeIp).add(cmd);
+            CompletableFuture<Void> ack = new CompletableFuture<Void>();
+            routesInFlight.incrementAndGet();
+            agent.schedule(() -> {
+                routesInFlight.decrementAndGet();
+                if (failingRoutes.stream().anyMatch(route -> cmd.contains(" " + route + " "))) {
+                    ack.completeExceptionally(new IllegalStateException(cmd + " failed, RTNETLINK answers: File exists"));
+                } else {
+                    ack.complete(null);
+                }
+            }, ROUTE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            return ack;
+        }
+
+        List<String> routeCommands(Ip4Address nodeIp) {
+            return routeCommands.computeIfAbsent(nodeIp, k -> new CopyOnWriteArrayList<String>());
+        }
+
+        // Waits until no route is in flight if minInFlight is 0, or until at least minInFlight routes are.
+        void awaitRoutes(int minInFlight) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10 * ROUTE_DELAY_MILLIS);
+            while (minInFlight == 0 ? routesInFlight.get() > 0 : routesInFlight.get() < minInFlight) {
+                assertTrue("Routes in flight: " + routesInFlight.get(), System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            agent.shutdownNow();
+        }
+    }
+}
@@ -40,16 +40,22 @@ public final class UpflbConstants {
             PiMatchFieldId.of("hdr.ipv4.dst_addr");
     public static final PiMatchFieldId HDR_HDR_GTPU_TEID =
             PiMatchFieldId.of("hdr.gtpu.teid");
+    public static final PiMatchFieldId HDR_META_UPF_SLOT =
+            PiMatchFieldId.of("meta.upf_slot");
     // Table IDs
     public static final PiTableId INGRESS_UPF_SNAT_TABLE =
             PiTableId.of("Ingress.upf_snat_table");
     public static final PiTableId INGRESS_UPF_DNAT_TABLE =
             PiTableId.of("Ingress.upf_dnat_table");
+    public static final PiTableId INGRESS_UPF_SLOT_TABLE =
+            PiTableId.of("Ingress.upf_slot_table");
     public static final PiTableId INGRESS_IP_ROUTE_TABLE =
             PiTableId.of("Ingress.ip_route_table");
     // Direct Counter IDs
     public static final PiCounterId INGRESS_UPF_DNAT_COUNTER =
             PiCounterId.of("Ingress.upf_dnat_counter");
+    public static final PiCounterId INGRESS_UPF_SLOT_COUNTER =
+            PiCounterId.of("Ingress.upf_slot_counter");
     public static final PiCounterId INGRESS_IP_ROUTE_COUNTER =
             PiCounterId.of("Ingress.ip_route_counter");
     public static final PiCounterId INGRESS_UPF_SNAT_COUNTER =
@@ -62,12 +68,15 @@ public final class UpflbConstants {
     public static final PiActionId INGRESS_SEND = PiActionId.of("Ingress.send");
     public static final PiActionId INGRESS_UPF_DNAT =
             PiActionId.of("Ingress.upf_dnat");
+    public static final PiActionId INGRESS_SET_UPF_SLOT =
+            PiActionId.of("Ingress.set_upf_slot");
     public static final PiActionId NO_ACTION = PiActionId.of("NoAction");
     // Action Param IDs
     public static final PiActionParamId UPF_VIP = PiActionParamId.of("upf_vip");
     public static final PiActionParamId SMAC = PiActionParamId.of("smac");
     public static final PiActionParamId PORT = PiActionParamId.of("port");
     public static final PiActionParamId UPF_DIP = PiActionParamId.of("upf_dip");
+    public static final PiActionParamId UPF_SLOT = PiActionParamId.of("upf_slot");
     public static final PiActionParamId DMAC = PiActionParamId.of("dmac");
     // Packet Metadata IDs
     public static final PiPacketMetadataId INGRESS_PORT =
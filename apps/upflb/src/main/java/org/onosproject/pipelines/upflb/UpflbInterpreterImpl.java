@@ -92,6 +92,7 @@ public class UpflbInterpreterImpl extends AbstractHandlerBehaviour implements Pi
             // .put(0, BasicConstants.INGRESS_TABLE0_CONTROL_TABLE0)
             .put(0, UpflbConstants.INGRESS_UPF_DNAT_TABLE)
             .put(1, UpflbConstants.INGRESS_UPF_SNAT_TABLE)
+            .put(2, UpflbConstants.INGRESS_UPF_SLOT_TABLE)
             .put(3, UpflbConstants.INGRESS_IP_ROUTE_TABLE)
             .build();
     private static final Map<Criterion.Type, PiMatchFieldId> CRITERION_MAP = new ImmutableMap.Builder<Criterion.Type, PiMatchFieldId>()